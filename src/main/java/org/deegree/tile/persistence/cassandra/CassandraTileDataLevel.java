@@ -37,6 +37,7 @@
 package org.deegree.tile.persistence.cassandra;
 
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 
 import org.deegree.tile.Tile;
 import org.deegree.tile.TileDataLevel;
@@ -45,6 +46,7 @@ import org.deegree.geometry.Envelope;
 
 import static org.deegree.tile.Tiles.calcTileEnvelope;
 import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.HotTileTracker;
 
 /**
  * {@link TileDataLevel} implementation for the {@link CassandraTileStore}.
@@ -56,9 +58,17 @@ import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
  */
 public class CassandraTileDataLevel implements TileDataLevel {
 
+    // maximum number of tile queries in flight per streaming request
+    private static final int MAX_PENDING = 64;
+
+    // maximum milliseconds a streaming request waits for the next tile
+    private static final long NEXT_TILE_TIMEOUT = 60000;
+
     private final TileMatrix metadata;
 
     private final CassandraConnector caConnector;
+
+    private final TileOverzoom overzoom;
     
     /**
      * Creates a new {@link FileSystemTileDataLevel} instance.
@@ -70,8 +80,22 @@ public class CassandraTileDataLevel implements TileDataLevel {
      */
     public CassandraTileDataLevel
         (TileMatrix metadata, CassandraConnector caConnector) {
+        this( metadata, caConnector, null );
+    }
+
+    /**
+     * Creates a new {@link CassandraTileDataLevel} instance synthesizing missing tiles from ancestor tiles.
+     * 
+     * @param metadata
+     *            TileDataLevel metadata
+     * @param caConnector
+     * @param overzoom
+     *            synthesizes missing tiles, may be <code>null</code> (missing tiles are not synthesized)
+     */
+    public CassandraTileDataLevel( TileMatrix metadata, CassandraConnector caConnector, TileOverzoom overzoom ) {
         this.metadata = metadata;
         this.caConnector = caConnector;
+        this.overzoom = overzoom;
     }
 
     @Override
@@ -84,11 +108,46 @@ public class CassandraTileDataLevel implements TileDataLevel {
         if ( metadata.getNumTilesX() <= x || metadata.getNumTilesY() <= y || x < 0 || y < 0 ) {
             return null;
         }
+        HotTileTracker hotTileTracker = caConnector.getHotTileTracker();
+        if ( hotTileTracker != null ) {
+            hotTileTracker.record( metadata.getIdentifier(), x, y );
+        }
         Envelope bbox = calcTileEnvelope( metadata, x, y );
         ByteBuffer tileImage = caConnector.resolv( metadata.getIdentifier(), x, y);
+        if ( tileImage == null && overzoom != null ) {
+            tileImage = overzoom.synthesize( metadata, x, y );
+        }
         return new CassandraTile( bbox, tileImage );
     }
 
+    /**
+     * Returns all tiles intersecting the given envelope. The tiles are fetched asynchronously and returned in the
+     * order they arrive, so the caller can process the first tiles while the others are still being fetched. Missing
+     * tiles are synthesized (if configured) by the thread consuming the iterator. The iterator implements
+     * {@link java.io.Closeable}, callers stopping before the last tile should close it to cancel the pending fetches.
+     * 
+     * @param envelope
+     *            requested area in the crs of the tile matrix, must not be <code>null</code>
+     * @return tiles intersecting the envelope, never <code>null</code>
+     */
+    public Iterator<Tile> getTiles( Envelope envelope ) {
+        Envelope matrixEnvelope = metadata.getSpatialMetadata().getEnvelope();
+        double originX = matrixEnvelope.getMin().get0();
+        double originY = matrixEnvelope.getMax().get1();
+        double tileWidth = metadata.getTileWidth();
+        double tileHeight = metadata.getTileHeight();
+
+        long minX = Math.max( (long) Math.floor( ( envelope.getMin().get0() - originX ) / tileWidth ), 0 );
+        long maxX = Math.min( (long) Math.ceil( ( envelope.getMax().get0() - originX ) / tileWidth ) - 1,
+                              metadata.getNumTilesX() - 1 );
+        long minY = Math.max( (long) Math.floor( ( originY - envelope.getMax().get1() ) / tileHeight ), 0 );
+        long maxY = Math.min( (long) Math.ceil( ( originY - envelope.getMin().get1() ) / tileHeight ) - 1,
+                              metadata.getNumTilesY() - 1 );
+
+        return new CassandraTileIterator( metadata, caConnector, overzoom, minX, minY, maxX, maxY, MAX_PENDING,
+                                          NEXT_TILE_TIMEOUT );
+    }
+
 
     
 }
@@ -0,0 +1,146 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.Envelope;
+import org.deegree.geometry.GeometryTransformer;
+import org.deegree.tile.DefaultTileDataSet;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileMatrixSet;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * {@link TileDataSet} implementation for the {@link CassandraTileStore}, fetches the tiles of an envelope
+ * asynchronously (see {@link CassandraTileDataLevel#getTiles(Envelope)}).
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CassandraTileDataSet extends DefaultTileDataSet {
+
+    private static final Logger LOG = getLogger( CassandraTileDataSet.class );
+
+    private final List<TileDataLevel> levels;
+
+    private final CassandraConnector caConnector;
+
+    /**
+     * Creates a new {@link CassandraTileDataSet} instance.
+     * 
+     * @param levels
+     *            tile data levels, ordered from the coarsest to the finest resolution, must not be <code>null</code>
+     * @param tileMatrixSet
+     *            tile matrix set of the levels, must not be <code>null</code>
+     * @param format
+     *            native image format, must not be <code>null</code>
+     * @param caConnector
+     *            connector of the column family holding the tiles, must not be <code>null</code>
+     */
+    public CassandraTileDataSet( List<TileDataLevel> levels, TileMatrixSet tileMatrixSet, String format,
+                                 CassandraConnector caConnector ) {
+        super( levels, tileMatrixSet, format );
+        this.levels = levels;
+        this.caConnector = caConnector;
+    }
+
+    /**
+     * @return connector of the column family holding the tiles, never <code>null</code>
+     */
+    public CassandraConnector getConnector() {
+        return caConnector;
+    }
+
+    /**
+     * Selects the level like {@link DefaultTileDataSet}: the coarsest level that is at least as fine as the requested
+     * resolution, or the finest level if there is none. The envelope is transformed into the coordinate system of the
+     * tile matrix set if necessary. The tiles of the level intersecting the envelope are fetched asynchronously.
+     */
+    @Override
+    public Iterator<Tile> getTiles( Envelope envelope, double resolution ) {
+        if ( levels.isEmpty() ) {
+            return Collections.<Tile> emptyList().iterator();
+        }
+        TileDataLevel level = selectLevel( resolution );
+        if ( !( level instanceof CassandraTileDataLevel ) ) {
+            return super.getTiles( envelope, resolution );
+        }
+        Envelope env = envelope;
+        ICRS crs = getCoordinateSystem();
+        if ( crs != null && envelope.getCoordinateSystem() != null && !crs.equals( envelope.getCoordinateSystem() ) ) {
+            try {
+                env = new GeometryTransformer( crs ).transform( envelope );
+            } catch ( Exception e ) {
+                LOG.warn( "Could not transform " + envelope + " to " + crs.getAlias() + ": " + e.getMessage() );
+                return Collections.<Tile> emptyList().iterator();
+            }
+        }
+        return ( (CassandraTileDataLevel) level ).getTiles( env );
+    }
+
+    private TileDataLevel selectLevel( double resolution ) {
+        TileDataLevel selected = null;
+        TileDataLevel finest = null;
+        for ( TileDataLevel level : levels ) {
+            double res = level.getMetadata().getResolution();
+            if ( res <= resolution && ( selected == null || res > selected.getMetadata().getResolution() ) ) {
+                selected = level;
+            }
+            if ( finest == null || res < finest.getMetadata().getResolution() ) {
+                finest = level;
+            }
+        }
+        return selected != null ? selected : finest;
+    }
+
+    private ICRS getCoordinateSystem() {
+        List<ICRS> crs = getTileMatrixSet().getSpatialMetadata().getCoordinateSystems();
+        return crs == null || crs.isEmpty() ? null : crs.get( 0 );
+    }
+
+}
@@ -0,0 +1,562 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.deegree.commons.config.DeegreeWorkspace;
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.Envelope;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.TileMatrixSet;
+import org.deegree.tile.persistence.TileStore;
+import org.deegree.tile.persistence.TileStoreManager;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.TokenRangeScanner;
+import org.slf4j.Logger;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Exports all tiles of a {@link CassandraTileDataSet} into an <a href="https://github.com/mapbox/mbtiles-spec">MBTiles</a>
+ * or <a href="http://www.geopackage.org/">GeoPackage</a> SQLite file.<br/>
+ * <br/>
+ * The column family is read by parallel token range scans, the tiles are handed over to a single writer through a
+ * bounded queue and inserted in batches, so memory use does not depend on the size of the data set. The level index is
+ * used as zoom level. Requires a SQLite JDBC driver (<code>jdbc:sqlite:</code>) on the classpath. A data set of a
+ * workspace can be exported from the command line, see {@link #main(String[])}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CassandraTileExporter {
+
+    private static final Logger LOG = getLogger( CassandraTileExporter.class );
+
+    private static final int FETCH_SIZE = 500;
+
+    private static final String TILES_TABLE = "tiles";
+
+    private static final int WGS84_SRS_ID = 4326;
+
+    private static final int WEB_MERCATOR_SRS_ID = 3857;
+
+    private static final int UNDEFINED_CARTESIAN_SRS_ID = -1;
+
+    private static final String WGS84_WKT = "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,"
+                                            + "298.257223563,AUTHORITY[\"EPSG\",\"7030\"]],"
+                                            + "AUTHORITY[\"EPSG\",\"6326\"]],"
+                                            + "PRIMEM[\"Greenwich\",0,AUTHORITY[\"EPSG\",\"8901\"]],"
+                                            + "UNIT[\"degree\",0.0174532925199433,AUTHORITY[\"EPSG\",\"9122\"]],"
+                                            + "AUTHORITY[\"EPSG\",\"4326\"]]";
+
+    private static final String WEB_MERCATOR_WKT = "PROJCS[\"WGS 84 / Pseudo-Mercator\"," + WGS84_WKT
+                                                   + ",PROJECTION[\"Mercator_1SP\"],PARAMETER[\"central_meridian\",0],"
+                                                   + "PARAMETER[\"scale_factor\",1],PARAMETER[\"false_easting\",0],"
+                                                   + "PARAMETER[\"false_northing\",0],"
+                                                   + "UNIT[\"metre\",1,AUTHORITY[\"EPSG\",\"9001\"]],"
+                                                   + "AXIS[\"X\",EAST],AXIS[\"Y\",NORTH],AUTHORITY[\"EPSG\",\"3857\"]]";
+
+    // time the scan thread (writer) waits for space in (tiles from) the queue before checking whether the writer (scan
+    // thread) is still running
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    // time the writer waits for the scan thread to stop after the export finished or failed
+    private static final long JOIN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Output format of a {@link CassandraTileExporter}.
+     */
+    public enum Format {
+        /** MBTiles 1.2, tile rows are counted from the bottom */
+        MBTILES,
+        /** GeoPackage 1.2 tiles, tile rows are counted from the top */
+        GEOPACKAGE
+    }
+
+    private static class ExportedTile {
+
+        private final long[] index;
+
+        private final byte[] image;
+
+        private ExportedTile( long[] index, byte[] image ) {
+            this.index = index;
+            this.image = image;
+        }
+    }
+
+    // marks the end of the scan in the queue
+    private static final ExportedTile END = new ExportedTile( null, null );
+
+    private final CassandraTileDataSet dataset;
+
+    private final Format format;
+
+    private final int threads;
+
+    private final int batchSize;
+
+    /**
+     * Creates a new {@link CassandraTileExporter} instance.
+     * 
+     * @param dataset
+     *            data set to export, must not be <code>null</code>
+     * @param format
+     *            output format, must not be <code>null</code>
+     * @param threads
+     *            number of threads scanning cassandra
+     * @param batchSize
+     *            number of tiles inserted per transaction, also bounds the number of tiles held in memory
+     */
+    public CassandraTileExporter( CassandraTileDataSet dataset, Format format, int threads, int batchSize ) {
+        this.dataset = dataset;
+        this.format = format;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Exports a tile data set of a cassandra tile store of a deegree workspace.
+     * 
+     * @param args
+     *            <code>workspace tileStoreId tileDataSetId file [mbtiles|geopackage] [threads] [batchSize]</code>, the
+     *            format defaults to GeoPackage for files ending with <code>.gpkg</code> and to MBTiles otherwise
+     * @throws Exception
+     *             if the workspace could not be initialized or the export failed
+     */
+    public static void main( String[] args ) throws Exception {
+        if ( args.length < 4 ) {
+            System.err.println( "Usage: " + CassandraTileExporter.class.getName() + " workspace tileStoreId"
+                                + " tileDataSetId file [mbtiles|geopackage] [threads] [batchSize]" );
+            System.exit( 1 );
+        }
+        File file = new File( args[3] );
+        Format format = file.getName().endsWith( ".gpkg" ) ? Format.GEOPACKAGE : Format.MBTILES;
+        if ( args.length > 4 ) {
+            format = Format.valueOf( args[4].toUpperCase() );
+        }
+        int threads = args.length > 5 ? Integer.parseInt( args[5] ) : 8;
+        int batchSize = args.length > 6 ? Integer.parseInt( args[6] ) : 1000;
+
+        DeegreeWorkspace workspace = DeegreeWorkspace.getInstance( args[0] );
+        workspace.initAll();
+        try {
+            TileStore store = workspace.getSubsystemManager( TileStoreManager.class ).get( args[1] );
+            if ( !( store instanceof CassandraTileStore ) ) {
+                throw new IllegalArgumentException( "No cassandra tile store with id " + args[1] + " is available." );
+            }
+            TileDataSet dataset = store.getTileDataSet( args[2] );
+            if ( !( dataset instanceof CassandraTileDataSet ) ) {
+                throw new IllegalArgumentException( "No tile data set with id " + args[2] + " is available." );
+            }
+            CassandraTileExporter exporter = new CassandraTileExporter( (CassandraTileDataSet) dataset, format,
+                                                                        threads, batchSize );
+            long exported = exporter.export( file );
+            System.out.println( "Exported " + exported + " tiles to " + file + "." );
+        } finally {
+            workspace.destroyAll();
+        }
+    }
+
+    /**
+     * Exports all tiles into a new file. If the export fails, the partially written file is deleted.
+     * 
+     * @param file
+     *            file to create, must not exist
+     * @return number of exported tiles
+     * @throws IOException
+     *             if the file exists or writing the file failed
+     * @throws TileIOException
+     *             if scanning cassandra failed
+     * @throws InterruptedException
+     *             if the calling thread was interrupted, the export is cancelled
+     */
+    public long export( File file ) throws IOException, InterruptedException {
+        if ( file.exists() ) {
+            throw new IOException( "File " + file + " already exists." );
+        }
+        Connection conn = null;
+        boolean complete = false;
+        try {
+            conn = DriverManager.getConnection( "jdbc:sqlite:" + file.getAbsolutePath() );
+            Statement stmt = conn.createStatement();
+            stmt.executeUpdate( "PRAGMA journal_mode = OFF" );
+            stmt.executeUpdate( "PRAGMA synchronous = OFF" );
+            stmt.close();
+            conn.setAutoCommit( false );
+            if ( format == Format.MBTILES ) {
+                createMBTilesTables( conn );
+            } else {
+                createGeoPackageTables( conn );
+            }
+            conn.commit();
+
+            long exported = insertTiles( conn );
+            if ( format == Format.MBTILES ) {
+                stmt = conn.createStatement();
+                stmt.executeUpdate( "CREATE UNIQUE INDEX tile_index ON " + TILES_TABLE
+                                    + " (zoom_level, tile_column, tile_row)" );
+                stmt.close();
+                conn.commit();
+            }
+            complete = true;
+            return exported;
+        } catch ( SQLException e ) {
+            throw new IOException( "Error writing " + file + ": " + e.getMessage(), e );
+        } finally {
+            if ( conn != null ) {
+                try {
+                    conn.close();
+                } catch ( SQLException e ) {
+                    LOG.debug( "Error closing " + file, e );
+                }
+            }
+            if ( !complete && file.exists() && !file.delete() ) {
+                LOG.warn( "Could not delete partially exported file {}.", file );
+            }
+        }
+    }
+
+    private long insertTiles( Connection conn ) throws SQLException, InterruptedException {
+        final CassandraConnector caConnector = dataset.getConnector();
+        final BlockingQueue<ExportedTile> queue = new ArrayBlockingQueue<ExportedTile>( batchSize );
+        final AtomicReference<RuntimeException> scanError = new AtomicReference<RuntimeException>();
+        // set as soon as the writer stops taking tiles from the queue
+        final AtomicBoolean writerDone = new AtomicBoolean();
+
+        final TokenRangeScanner scanner = new TokenRangeScanner( caConnector.getCassandraDB(),
+                                                                 caConnector.getColumnFamily(), "key, img", threads,
+                                                                 FETCH_SIZE, null );
+        Thread scanThread = new Thread( "cassandra-tile-export" ) {
+            @Override
+            public void run() {
+                try {
+                    scanner.scan( new TokenRangeScanner.RowHandler() {
+                        @Override
+                        public void handle( Row row ) {
+                            ExportedTile tile = toExportedTile( caConnector, row );
+                            if ( tile == null ) {
+                                return;
+                            }
+                            try {
+                                handOver( queue, tile, writerDone );
+                            } catch ( InterruptedException e ) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    } );
+                } catch ( InterruptedException e ) {
+                    scanError.set( new TileIOException( "Export interrupted." ) );
+                } catch ( RuntimeException e ) {
+                    scanError.set( e );
+                } finally {
+                    try {
+                        handOver( queue, END, writerDone );
+                    } catch ( InterruptedException e ) {
+                        // writer gave up
+                    }
+                }
+            }
+        };
+        scanThread.setDaemon( true );
+        scanThread.start();
+
+        long exported = 0;
+        PreparedStatement insert = conn.prepareStatement( "INSERT OR REPLACE INTO " + TILES_TABLE
+                                                          + " (zoom_level, tile_column, tile_row, tile_data)"
+                                                          + " VALUES (?, ?, ?, ?)" );
+        try {
+            ExportedTile tile;
+            while ( ( tile = queue.poll( OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ) != END ) {
+                if ( tile == null ) {
+                    if ( !scanThread.isAlive() && queue.isEmpty() ) {
+                        // scan thread died without marking the end
+                        break;
+                    }
+                    continue;
+                }
+                insert.setLong( 1, tile.index[0] );
+                insert.setLong( 2, tile.index[1] );
+                insert.setLong( 3, tile.index[2] );
+                insert.setBytes( 4, tile.image );
+                insert.addBatch();
+                if ( ++exported % batchSize == 0 ) {
+                    insert.executeBatch();
+                    conn.commit();
+                    LOG.debug( "Exported {} tiles.", exported );
+                }
+            }
+            insert.executeBatch();
+            conn.commit();
+        } finally {
+            writerDone.set( true );
+            insert.close();
+            scanThread.interrupt();
+            scanThread.join( JOIN_TIMEOUT_MILLIS );
+            if ( scanThread.isAlive() ) {
+                LOG.warn( "Scan of {} did not stop after the export ended.", caConnector.getColumnFamily() );
+            }
+        }
+        if ( scanError.get() != null ) {
+            throw scanError.get();
+        }
+        LOG.info( "Exported {} tiles of {}.", exported, caConnector.getColumnFamily() );
+        return exported;
+    }
+
+    /**
+     * Puts a tile into the queue, gives up as soon as the writer does not take tiles anymore.
+     */
+    private static void handOver( BlockingQueue<ExportedTile> queue, ExportedTile tile, AtomicBoolean done )
+                            throws InterruptedException {
+        while ( !done.get() ) {
+            if ( queue.offer( tile, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                return;
+            }
+        }
+    }
+
+    private ExportedTile toExportedTile( CassandraConnector caConnector, Row row ) {
+        long[] index;
+        try {
+            index = caConnector.parseRowKey( row.getString( 0 ) );
+        } catch ( IllegalArgumentException e ) {
+            LOG.debug( "Skipping row: {}", e.getMessage() );
+            return null;
+        }
+        ByteBuffer img = row.getBytes( 1 );
+        if ( img == null ) {
+            return null;
+        }
+        if ( format == Format.MBTILES ) {
+            // MBTiles follows the TMS scheme, rows are counted from the bottom
+            long numTilesY = dataset.getTileDataLevels().get( (int) index[0] ).getMetadata().getNumTilesY();
+            index[2] = numTilesY - 1 - index[2];
+        }
+        byte[] image = new byte[img.remaining()];
+        img.duplicate().get( image );
+        return new ExportedTile( index, image );
+    }
+
+    private void createMBTilesTables( Connection conn ) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate( "CREATE TABLE metadata (name TEXT, value TEXT)" );
+        stmt.executeUpdate( "CREATE TABLE " + TILES_TABLE
+                            + " (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)" );
+        stmt.close();
+
+        PreparedStatement insert = conn.prepareStatement( "INSERT INTO metadata (name, value) VALUES (?, ?)" );
+        String[][] metadata = { { "name", dataset.getTileMatrixSet().getIdentifier() },
+                               { "format", getFormatName() }, { "type", "baselayer" }, { "version", "1.0" },
+                               { "minzoom", "0" },
+                               { "maxzoom", String.valueOf( dataset.getTileDataLevels().size() - 1 ) } };
+        for ( String[] entry : metadata ) {
+            insert.setString( 1, entry[0] );
+            insert.setString( 2, entry[1] );
+            insert.executeUpdate();
+        }
+        insert.close();
+    }
+
+    private void createGeoPackageTables( Connection conn ) throws SQLException {
+        Statement stmt = conn.createStatement();
+        // 'GPKG' and version 1.2.0
+        stmt.executeUpdate( "PRAGMA application_id = 1196444487" );
+        stmt.executeUpdate( "PRAGMA user_version = 10200" );
+        stmt.executeUpdate( "CREATE TABLE gpkg_spatial_ref_sys (srs_name TEXT NOT NULL, srs_id INTEGER NOT NULL PRIMARY KEY,"
+                            + " organization TEXT NOT NULL, organization_coordsys_id INTEGER NOT NULL,"
+                            + " definition TEXT NOT NULL, description TEXT)" );
+        stmt.executeUpdate( "CREATE TABLE gpkg_contents (table_name TEXT NOT NULL PRIMARY KEY, data_type TEXT NOT NULL,"
+                            + " identifier TEXT UNIQUE, description TEXT DEFAULT '',"
+                            + " last_change DATETIME NOT NULL DEFAULT (strftime('%Y-%m-%dT%H:%M:%fZ','now')),"
+                            + " min_x DOUBLE, min_y DOUBLE, max_x DOUBLE, max_y DOUBLE, srs_id INTEGER,"
+                            + " CONSTRAINT fk_gc_r_srs_id FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys(srs_id))" );
+        stmt.executeUpdate( "CREATE TABLE gpkg_tile_matrix_set (table_name TEXT NOT NULL PRIMARY KEY,"
+                            + " srs_id INTEGER NOT NULL, min_x DOUBLE NOT NULL, min_y DOUBLE NOT NULL,"
+                            + " max_x DOUBLE NOT NULL, max_y DOUBLE NOT NULL,"
+                            + " CONSTRAINT fk_gtms_table_name FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name),"
+                            + " CONSTRAINT fk_gtms_srs FOREIGN KEY (srs_id) REFERENCES gpkg_spatial_ref_sys (srs_id))" );
+        stmt.executeUpdate( "CREATE TABLE gpkg_tile_matrix (table_name TEXT NOT NULL, zoom_level INTEGER NOT NULL,"
+                            + " matrix_width INTEGER NOT NULL, matrix_height INTEGER NOT NULL,"
+                            + " tile_width INTEGER NOT NULL, tile_height INTEGER NOT NULL,"
+                            + " pixel_x_size DOUBLE NOT NULL, pixel_y_size DOUBLE NOT NULL,"
+                            + " CONSTRAINT pk_ttm PRIMARY KEY (table_name, zoom_level),"
+                            + " CONSTRAINT fk_tmm_table_name FOREIGN KEY (table_name) REFERENCES gpkg_contents(table_name))" );
+        stmt.executeUpdate( "CREATE TABLE " + TILES_TABLE
+                            + " (id INTEGER PRIMARY KEY AUTOINCREMENT, zoom_level INTEGER NOT NULL,"
+                            + " tile_column INTEGER NOT NULL, tile_row INTEGER NOT NULL, tile_data BLOB NOT NULL,"
+                            + " UNIQUE (zoom_level, tile_column, tile_row))" );
+        // the definitions every GeoPackage has to contain
+        stmt.executeUpdate( "INSERT INTO gpkg_spatial_ref_sys VALUES"
+                            + " ('Undefined cartesian SRS', -1, 'NONE', -1, 'undefined',"
+                            + " 'undefined cartesian coordinate reference system'),"
+                            + " ('Undefined geographic SRS', 0, 'NONE', 0, 'undefined',"
+                            + " 'undefined geographic coordinate reference system')" );
+        insertSpatialRefSys( conn, "WGS 84 geodetic", WGS84_SRS_ID, WGS84_WKT,
+                             "longitude/latitude coordinates in decimal degrees on the WGS 84 spheroid" );
+        stmt.close();
+
+        TileMatrixSet tms = dataset.getTileMatrixSet();
+        Envelope env = tms.getSpatialMetadata().getEnvelope();
+        int srsId = insertSpatialRefSys( conn, tms );
+
+        PreparedStatement insert = conn.prepareStatement( "INSERT INTO gpkg_contents (table_name, data_type, identifier,"
+                                                          + " min_x, min_y, max_x, max_y, srs_id)"
+                                                          + " VALUES (?, 'tiles', ?, ?, ?, ?, ?, ?)" );
+        insert.setString( 1, TILES_TABLE );
+        insert.setString( 2, tms.getIdentifier() );
+        setEnvelope( insert, 3, env );
+        insert.setInt( 7, srsId );
+        insert.executeUpdate();
+        insert.close();
+
+        insert = conn.prepareStatement( "INSERT INTO gpkg_tile_matrix_set VALUES (?, ?, ?, ?, ?, ?)" );
+        insert.setString( 1, TILES_TABLE );
+        insert.setInt( 2, srsId );
+        setEnvelope( insert, 3, env );
+        insert.executeUpdate();
+        insert.close();
+
+        insert = conn.prepareStatement( "INSERT INTO gpkg_tile_matrix VALUES (?, ?, ?, ?, ?, ?, ?, ?)" );
+        List<TileDataLevel> levels = dataset.getTileDataLevels();
+        for ( int i = 0; i < levels.size(); i++ ) {
+            TileMatrix tm = levels.get( i ).getMetadata();
+            insert.setString( 1, TILES_TABLE );
+            insert.setInt( 2, i );
+            insert.setLong( 3, tm.getNumTilesX() );
+            insert.setLong( 4, tm.getNumTilesY() );
+            // TileMatrix reports the pixel size of the tiles as long
+            insert.setLong( 5, tm.getTilePixelsX() );
+            insert.setLong( 6, tm.getTilePixelsY() );
+            insert.setDouble( 7, tm.getTileWidth() / (double) tm.getTilePixelsX() );
+            insert.setDouble( 8, tm.getTileHeight() / (double) tm.getTilePixelsY() );
+            insert.executeUpdate();
+        }
+        insert.close();
+    }
+
+    /**
+     * Registers the crs of the tile matrix set. Only WGS 84 and Web Mercator are known, the undefined cartesian srs is
+     * used for other crs, as their definition is not available.
+     */
+    private int insertSpatialRefSys( Connection conn, TileMatrixSet tms ) throws SQLException {
+        List<ICRS> crsList = tms.getSpatialMetadata().getCoordinateSystems();
+        if ( crsList == null || crsList.isEmpty() ) {
+            return UNDEFINED_CARTESIAN_SRS_ID;
+        }
+        String alias = crsList.get( 0 ).getAlias();
+        int srsId = getSrsId( alias );
+        if ( srsId == WEB_MERCATOR_SRS_ID ) {
+            insertSpatialRefSys( conn, "WGS 84 / Pseudo-Mercator", WEB_MERCATOR_SRS_ID, WEB_MERCATOR_WKT, null );
+        } else if ( srsId != WGS84_SRS_ID ) {
+            LOG.warn( "Definition of crs {} is not known, using undefined cartesian srs.", alias );
+            return UNDEFINED_CARTESIAN_SRS_ID;
+        }
+        return srsId;
+    }
+
+    private static void insertSpatialRefSys( Connection conn, String name, int srsId, String definition,
+                                             String description ) throws SQLException {
+        PreparedStatement insert = conn.prepareStatement( "INSERT INTO gpkg_spatial_ref_sys VALUES"
+                                                          + " (?, ?, 'EPSG', ?, ?, ?)" );
+        insert.setString( 1, name );
+        insert.setInt( 2, srsId );
+        insert.setInt( 3, srsId );
+        insert.setString( 4, definition );
+        insert.setString( 5, description );
+        insert.executeUpdate();
+        insert.close();
+    }
+
+    /**
+     * @return EPSG code of the crs, <code>-1</code> if it is no EPSG crs
+     */
+    static int getSrsId( String alias ) {
+        String upper = alias.toUpperCase();
+        if ( upper.equals( "CRS:84" ) || upper.endsWith( "CRS84" ) ) {
+            return WGS84_SRS_ID;
+        }
+        if ( !upper.contains( "EPSG" ) ) {
+            return -1;
+        }
+        int code;
+        int codeStart = Math.max( alias.lastIndexOf( ':' ), alias.lastIndexOf( '/' ) ) + 1;
+        try {
+            code = Integer.parseInt( alias.substring( codeStart ) );
+        } catch ( NumberFormatException e ) {
+            return -1;
+        }
+        // legacy codes of web mercator
+        if ( code == 900913 || code == 3785 || code == 102100 || code == 102113 ) {
+            return WEB_MERCATOR_SRS_ID;
+        }
+        return code;
+    }
+
+    private static void setEnvelope( PreparedStatement stmt, int firstParameter, Envelope env ) throws SQLException {
+        stmt.setDouble( firstParameter, env.getMin().get0() );
+        stmt.setDouble( firstParameter + 1, env.getMin().get1() );
+        stmt.setDouble( firstParameter + 2, env.getMax().get0() );
+        stmt.setDouble( firstParameter + 3, env.getMax().get1() );
+    }
+
+    private String getFormatName() {
+        return dataset.getNativeImageFormat().replaceAll( "image/", "" );
+    }
+
+}
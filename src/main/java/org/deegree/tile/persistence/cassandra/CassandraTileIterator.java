@@ -0,0 +1,315 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.deegree.geometry.Envelope;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.HotTileTracker;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.deegree.tile.Tiles.calcTileEnvelope;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Iterator over a rectangular range of tiles of a {@link CassandraTileDataLevel}.<br/>
+ * <br/>
+ * The tiles are fetched asynchronously, up to <code>maxPending</code> queries are in flight at a time. Tiles are
+ * returned in the order they arrive, not in index order. Missing tiles are synthesized from ancestor tiles if a
+ * {@link TileOverzoom} is configured: the ancestors are fetched asynchronously as soon as a tile turns out to be
+ * missing, the cropping is done by the thread consuming the iterator. Tiles that are still missing or could not be
+ * fetched are returned as well, they fail on access just like the tiles returned by
+ * {@link CassandraTileDataLevel#getTile(long, long)}. Fetch failures are logged.<br/>
+ * <br/>
+ * If no tile arrives within <code>timeout</code> milliseconds, {@link #next()} fails and the iterator is closed.
+ * Consumers stopping before the last tile should {@link #close()} the iterator, this cancels the fetches still in
+ * flight.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+class CassandraTileIterator implements Iterator<Tile>, Closeable {
+
+    private static final Logger LOG = getLogger( CassandraTileIterator.class );
+
+    private final TileMatrix metadata;
+
+    private final CassandraConnector caConnector;
+
+    private final TileOverzoom.Request overzoom;
+
+    private final long minY;
+
+    private final long maxY;
+
+    private final long total;
+
+    private final long timeout;
+
+    private final BlockingQueue<ArrivedTile> arrived = new LinkedBlockingQueue<ArrivedTile>();
+
+    // fetches in flight, cancelled on close
+    private final Set<Future<?>> pending = Collections.newSetFromMap( new ConcurrentHashMap<Future<?>, Boolean>() );
+
+    private final AtomicBoolean failureLogged = new AtomicBoolean();
+
+    private volatile boolean closed;
+
+    private long nextX;
+
+    private long nextY;
+
+    private long requested;
+
+    private long returned;
+
+    /**
+     * Creates a new {@link CassandraTileIterator} and issues the first queries.
+     * 
+     * @param metadata
+     *            metadata of the tile matrix, must not be <code>null</code>
+     * @param caConnector
+     *            connector to fetch the tiles with, must not be <code>null</code>
+     * @param overzoom
+     *            synthesizes missing tiles, may be <code>null</code>
+     * @param minX
+     *            first column (inclusive)
+     * @param minY
+     *            first row (inclusive)
+     * @param maxX
+     *            last column (inclusive)
+     * @param maxY
+     *            last row (inclusive)
+     * @param maxPending
+     *            maximum number of queries in flight
+     * @param timeout
+     *            milliseconds {@link #next()} waits for a tile to arrive
+     */
+    CassandraTileIterator( TileMatrix metadata, CassandraConnector caConnector, TileOverzoom overzoom, long minX,
+                           long minY, long maxX, long maxY, int maxPending, long timeout ) {
+        this.metadata = metadata;
+        this.caConnector = caConnector;
+        this.overzoom = overzoom != null ? overzoom.newRequest() : null;
+        this.minY = minY;
+        this.maxY = maxY;
+        this.total = minX > maxX || minY > maxY ? 0 : ( maxX - minX + 1 ) * ( maxY - minY + 1 );
+        this.nextX = minX;
+        this.nextY = minY;
+        this.timeout = timeout;
+        for ( int i = 0; i < maxPending; i++ ) {
+            requestNext();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !closed && returned < total;
+    }
+
+    @Override
+    public Tile next() {
+        if ( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        ArrivedTile tile;
+        try {
+            tile = arrived.poll( timeout, TimeUnit.MILLISECONDS );
+        } catch ( InterruptedException e ) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new TileIOException( "Interrupted while waiting for tiles from cassandra db." );
+        }
+        if ( tile == null ) {
+            close();
+            throw new TileIOException( "No tile of " + metadata.getIdentifier() + " arrived from cassandra db within "
+                                       + timeout + " ms." );
+        }
+        returned++;
+        requestNext();
+        ByteBuffer tileImage = tile.tileImage;
+        if ( tile.ancestor != null ) {
+            try {
+                tileImage = overzoom.synthesize( metadata, tile.x, tile.y, tile.ancestor );
+            } catch ( TileIOException e ) {
+                // returned as missing tile
+                LOG.debug( "Could not synthesize tile {}/{} of {}: {}",
+                           new Object[] { tile.x, tile.y, metadata.getIdentifier(), e.getMessage() } );
+            }
+        }
+        return new CassandraTile( tile.bbox, tileImage );
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Cancels the fetches still in flight, {@link #hasNext()} returns <code>false</code> afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for ( Future<?> fetch : pending ) {
+            fetch.cancel( false );
+        }
+        pending.clear();
+    }
+
+    private static class ArrivedTile {
+
+        private final Envelope bbox;
+
+        private final long x;
+
+        private final long y;
+
+        private final ByteBuffer tileImage;
+
+        // ancestor to synthesize a missing tile from, may be null
+        private final TileOverzoom.Ancestor ancestor;
+
+        private ArrivedTile( Envelope bbox, long x, long y, ByteBuffer tileImage, TileOverzoom.Ancestor ancestor ) {
+            this.bbox = bbox;
+            this.x = x;
+            this.y = y;
+            this.tileImage = tileImage;
+            this.ancestor = ancestor;
+        }
+    }
+
+    private void requestNext() {
+        if ( requested == total ) {
+            return;
+        }
+        HotTileTracker hotTileTracker = caConnector.getHotTileTracker();
+        if ( hotTileTracker != null ) {
+            hotTileTracker.record( metadata.getIdentifier(), nextX, nextY );
+        }
+        final Envelope bbox = calcTileEnvelope( metadata, nextX, nextY );
+        final long x = nextX;
+        final long y = nextY;
+        final ListenableFuture<ByteBuffer> fetch = caConnector.resolvAsync( metadata.getIdentifier(), x, y );
+        pending.add( fetch );
+        Futures.addCallback( fetch, new FutureCallback<ByteBuffer>() {
+            @Override
+            public void onSuccess( ByteBuffer tileImage ) {
+                pending.remove( fetch );
+                if ( tileImage == null && overzoom != null && !closed ) {
+                    requestAncestor( bbox, x, y );
+                } else {
+                    arrived.add( new ArrivedTile( bbox, x, y, tileImage, null ) );
+                }
+            }
+
+            @Override
+            public void onFailure( Throwable t ) {
+                pending.remove( fetch );
+                if ( !closed ) {
+                    logFailure( "Could not fetch", x, y, t );
+                }
+                arrived.add( new ArrivedTile( bbox, x, y, null, null ) );
+            }
+        } );
+        requested++;
+        if ( ++nextY > maxY ) {
+            nextY = minY;
+            nextX++;
+        }
+    }
+
+    private void requestAncestor( final Envelope bbox, final long x, final long y ) {
+        ByteBuffer cached = overzoom.getCached( metadata, x, y );
+        if ( cached != null ) {
+            arrived.add( new ArrivedTile( bbox, x, y, cached, null ) );
+            return;
+        }
+        final ListenableFuture<TileOverzoom.Ancestor> fetch = overzoom.findAncestor( metadata, x, y );
+        pending.add( fetch );
+        Futures.addCallback( fetch, new FutureCallback<TileOverzoom.Ancestor>() {
+            @Override
+            public void onSuccess( TileOverzoom.Ancestor ancestor ) {
+                pending.remove( fetch );
+                arrived.add( new ArrivedTile( bbox, x, y, null, ancestor ) );
+            }
+
+            @Override
+            public void onFailure( Throwable t ) {
+                pending.remove( fetch );
+                if ( !closed ) {
+                    logFailure( "Could not fetch ancestor of", x, y, t );
+                }
+                arrived.add( new ArrivedTile( bbox, x, y, null, null ) );
+            }
+        } );
+    }
+
+    /**
+     * Logs the first failure of this iterator as a warning, further failures (usually with the same cause) at debug
+     * level.
+     */
+    private void logFailure( String what, long x, long y, Throwable t ) {
+        String msg = what + " tile " + x + "/" + y + " of " + metadata.getIdentifier() + ": " + t.getMessage();
+        if ( failureLogged.compareAndSet( false, true ) ) {
+            LOG.warn( msg );
+        } else {
+            LOG.debug( msg );
+        }
+    }
+
+}
@@ -36,10 +36,27 @@
 
 package org.deegree.tile.persistence.cassandra;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.deegree.tile.TileDataSet;
 import org.deegree.tile.persistence.GenericTileStore;
 import org.deegree.tile.persistence.TileStoreTransaction;
+import org.deegree.tile.persistence.cassandra.db.HotTileTracker;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
 
 /**
  * Generic {@link org.deegree.tile.persistence.TileStore}.
@@ -51,13 +68,157 @@ import org.deegree.tile.persistence.TileStoreTransaction;
  */
 public class CassandraTileStore extends GenericTileStore {
 
+    private static final Logger LOG = getLogger( CassandraTileStore.class );
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService oneOffTasks;
+
+    private final List<ObjectName> mbeans = new ArrayList<ObjectName>();
+
+    private final Map<String, TileDataSet> tileDataSets;
+
+    private TileOptimizer tileOptimizer;
+
     public CassandraTileStore( Map<String, TileDataSet> tileDataSets ) {
         super(tileDataSets);
+        this.tileDataSets = tileDataSets;
     }
     
     @Override
     public TileStoreTransaction acquireTransaction( String id ) {
         return new CassandraTileStoreTransaction( id, this );
     }    
+
+    /**
+     * Sets the optimizer applied to tiles added through transactions and publishes its counters via JMX.
+     * 
+     * @param storeId
+     *            identifier of this tile store, must not be <code>null</code>
+     * @param tileOptimizer
+     *            may be <code>null</code> (tiles are stored unchanged)
+     */
+    public synchronized void setTileOptimizer( String storeId, TileOptimizer tileOptimizer ) {
+        this.tileOptimizer = tileOptimizer;
+        if ( tileOptimizer != null ) {
+            registerMBean( "TileOptimizer", storeId, tileOptimizer );
+        }
+    }
+
+    /**
+     * @return optimizer applied to tiles added through transactions, may be <code>null</code>
+     */
+    public TileOptimizer getTileOptimizer() {
+        return tileOptimizer;
+    }
+
+    /**
+     * Runs a background task periodically until the store is destroyed.
+     * 
+     * @param task
+     *            task to run, must not be <code>null</code>
+     * @param intervalMillis
+     *            milliseconds between the end of a run and the start of the next one
+     */
+    public synchronized void schedule( Runnable task, long intervalMillis ) {
+        getScheduler().scheduleWithFixedDelay( task, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Runs a background task once on its own thread, so that long tasks (e.g. warming up the local cache) do not delay
+     * the periodic tasks. The task is interrupted if the store is destroyed.
+     * 
+     * @param task
+     *            task to run, must not be <code>null</code>
+     */
+    public synchronized void submit( Runnable task ) {
+        if ( oneOffTasks == null ) {
+            oneOffTasks = Executors.newCachedThreadPool( new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "cassandra-tilestore-background" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        oneOffTasks.execute( task );
+    }
+
+    /**
+     * Publishes the hot tiles of a tile data set via JMX and writes its snapshots periodically until the store is
+     * destroyed.
+     * 
+     * @param tileDataSetId
+     *            identifier of the tile data set, must not be <code>null</code>
+     * @param hotTileTracker
+     *            tracker of the tile data set, must not be <code>null</code>
+     * @param snapshotIntervalMillis
+     *            milliseconds between two snapshots
+     */
+    public synchronized void addHotTileTracker( String tileDataSetId, HotTileTracker hotTileTracker,
+                                                long snapshotIntervalMillis ) {
+        registerMBean( "HotTiles", tileDataSetId, hotTileTracker );
+        schedule( hotTileTracker, snapshotIntervalMillis );
+    }
+
+    private void registerMBean( String type, String id, Object mbean ) {
+        try {
+            ObjectName name = new ObjectName( "org.deegree.tile.persistence.cassandra:type=" + type + ",name="
+                                              + ObjectName.quote( id ) );
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( server.isRegistered( name ) ) {
+                server.unregisterMBean( name );
+            }
+            server.registerMBean( mbean, name );
+            mbeans.add( name );
+        } catch ( JMException e ) {
+            LOG.warn( "Could not register " + type + " of " + id + " via JMX: " + e.getMessage() );
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if ( scheduler != null ) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if ( oneOffTasks != null ) {
+            oneOffTasks.shutdownNow();
+            oneOffTasks = null;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for ( ObjectName name : mbeans ) {
+            try {
+                server.unregisterMBean( name );
+            } catch ( JMException e ) {
+                LOG.debug( "Could not unregister " + name, e );
+            }
+        }
+        mbeans.clear();
+        if ( tileOptimizer != null ) {
+            tileOptimizer.destroy();
+        }
+        for ( TileDataSet tds : tileDataSets.values() ) {
+            if ( tds instanceof CassandraTileDataSet ) {
+                ( (CassandraTileDataSet) tds ).getConnector().destroy();
+            }
+        }
+        super.destroy();
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        if ( scheduler == null ) {
+            scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable r ) {
+                    Thread thread = new Thread( r, "cassandra-tilestore-tasks" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        return scheduler;
+    }
     
 }
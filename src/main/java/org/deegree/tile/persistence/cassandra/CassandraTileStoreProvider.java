@@ -36,7 +36,11 @@
 
 package org.deegree.tile.persistence.cassandra;
 
+import static org.apache.commons.io.FilenameUtils.getBaseName;
+
 import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -48,14 +52,20 @@ import org.deegree.commons.config.DeegreeWorkspace;
 import org.deegree.commons.config.ResourceInitException;
 import org.deegree.commons.config.ResourceManager;
 import static org.deegree.commons.xml.jaxb.JAXBUtils.unmarshall;
-import org.deegree.tile.DefaultTileDataSet;
 import org.deegree.tile.TileDataLevel;
 import org.deegree.tile.TileDataSet;
 import org.deegree.tile.TileMatrix;
 import org.deegree.tile.TileMatrixSet;
+import org.deegree.tile.persistence.TileStore;
+import org.deegree.tile.persistence.TileStoreManager;
 import org.deegree.tile.persistence.TileStoreProvider;
 import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
 import org.deegree.tile.persistence.cassandra.db.CassandraDB;
+import org.deegree.tile.persistence.cassandra.db.CircuitBreaker;
+import org.deegree.tile.persistence.cassandra.db.HotTileTracker;
+import org.deegree.tile.persistence.cassandra.db.LocalTileCache;
+import org.deegree.tile.persistence.cassandra.db.ReadThroughLoader;
+import org.deegree.tile.persistence.cassandra.db.TileEvictionJob;
 import org.deegree.tile.persistence.cassandra.jaxb.CassandraTileStoreJAXB;
 import org.deegree.tile.tilematrixset.TileMatrixSetManager;
 
@@ -89,6 +99,10 @@ public class CassandraTileStoreProvider implements TileStoreProvider {
 
     @Override
     public CassandraTileStore create( URL configUrl ) throws ResourceInitException {
+        // released if a later step fails, so a failed configuration does not leave threads behind
+        List<CassandraConnector> connectors = new ArrayList<CassandraConnector>();
+        CassandraTileStore store = null;
+        boolean created = false;
         try {
 
             CassandraTileStoreJAXB config = (CassandraTileStoreJAXB) unmarshall( JAXB_PACKAGE, CONFIG_SCHEMA, configUrl, workspace );
@@ -101,6 +115,8 @@ public class CassandraTileStoreProvider implements TileStoreProvider {
                     config.getCassandraHosts(),
                     config.getCassandraKeyspace() 
             );
+            cassaDB.setCircuitBreaker( createCircuitBreaker( config.getCircuitBreaker() ) );
+            LocalTileCache localCache = createLocalCache( config.getLocalCache() );
             
             for ( CassandraTileStoreJAXB.TileDataSet tds : config.getTileDataSet() ) {
                 String id = tds.getIdentifier();
@@ -115,26 +131,196 @@ public class CassandraTileStoreProvider implements TileStoreProvider {
                 
                 String columnFamily = tds.getCassandraColumnfamily();
                 CassandraConnector caConnector = new CassandraConnector(cassaDB, columnFamily);
+                connectors.add( caConnector );
+                caConnector.setLocalCache( localCache );
+                caConnector.setHotTileTracker( createHotTileTracker( tds.getHotTiles(), configUrl ) );
+                caConnector.setReadThroughLoader( createReadThroughLoader( tds.getReadThrough(), id ) );
+                TileOverzoom overzoom = createOverzoom( tds.getOverzoom(), caConnector );
                 for ( TileMatrix tm : tms.getTileMatrices() ) {
-                    list.add(new CassandraTileDataLevel(tm, caConnector));
+                    list.add(new CassandraTileDataLevel(tm, caConnector, overzoom));
                 }
 
-                DefaultTileDataSet dataset = new DefaultTileDataSet( list, tms, "image/png" );
+                CassandraTileDataSet dataset = new CassandraTileDataSet( list, tms, "image/png", caConnector );
                 caConnector.setTileDataSet(dataset);
                 
                 map.put( id, dataset );
             }
 
-            return new CassandraTileStore( map );
+            store = new CassandraTileStore( map );
+            store.setTileOptimizer( getBaseName( configUrl.getPath() ),
+                                    createTileOptimizer( config.getTileOptimization() ) );
+            for ( CassandraTileStoreJAXB.TileDataSet tds : config.getTileDataSet() ) {
+                CassandraTileDataSet dataset = (CassandraTileDataSet) map.get( tds.getIdentifier() );
+                startBackgroundTasks( store, tds, dataset.getConnector() );
+            }
+            created = true;
+            return store;
         } catch ( ResourceInitException e ) {
             throw e;
         } catch ( Throwable e ) {
             String msg = "Unable to create CassandraTileStore: " + e.getMessage();
             LOG.error( msg, e );
             throw new ResourceInitException( msg, e );
+        } finally {
+            if ( !created ) {
+                destroyPartial( store, connectors );
+            }
+        }
+    }
+
+    private static void destroyPartial( CassandraTileStore store, List<CassandraConnector> connectors ) {
+        try {
+            if ( store != null ) {
+                // stops the background tasks and destroys the optimizer and the connectors
+                store.destroy();
+                return;
+            }
+            for ( CassandraConnector connector : connectors ) {
+                connector.destroy();
+            }
+        } catch ( RuntimeException e ) {
+            LOG.warn( "Could not release the resources of the failed CassandraTileStore: " + e.getMessage() );
         }
     }
     
+    private static CircuitBreaker createCircuitBreaker( CassandraTileStoreJAXB.CircuitBreaker config ) {
+        if ( config == null ) {
+            return null;
+        }
+        return new CircuitBreaker( valueOf( config.getFailureRateThreshold(), 0.5 ),
+                                   valueOf( config.getSlowCallThreshold(), 1000L ),
+                                   valueOf( config.getSlowCallRateThreshold(), 0.8 ),
+                                   valueOf( config.getWindowSize(), 100 ), valueOf( config.getMinimumCalls(), 20 ),
+                                   valueOf( config.getOpenDuration(), 10000L ),
+                                   valueOf( config.getHalfOpenTrials(), 3 ) );
+    }
+
+    private static LocalTileCache createLocalCache( CassandraTileStoreJAXB.LocalCache config ) {
+        if ( config == null ) {
+            return null;
+        }
+        return new LocalTileCache( config.getMaxBytes(), valueOf( config.getTimeToLive(), 0L ) );
+    }
+
+    private static void startBackgroundTasks( CassandraTileStore store, CassandraTileStoreJAXB.TileDataSet config,
+                                              final CassandraConnector caConnector ) {
+        CassandraTileStoreJAXB.TileDataSet.Eviction eviction = config.getEviction();
+        if ( eviction != null ) {
+            store.schedule( createEvictionJob( eviction, caConnector ), valueOf( eviction.getInterval(), 86400000L ) );
+        }
+
+        final HotTileTracker hotTileTracker = caConnector.getHotTileTracker();
+        if ( hotTileTracker == null ) {
+            return;
+        }
+        CassandraTileStoreJAXB.TileDataSet.HotTiles hotTiles = config.getHotTiles();
+        store.addHotTileTracker( config.getIdentifier(), hotTileTracker,
+                                 valueOf( hotTiles.getSnapshotInterval(), 300000L ) );
+        final File snapshotFile = hotTileTracker.getSnapshotFile();
+        if ( valueOf( hotTiles.isWarmUp(), false ) && snapshotFile != null && snapshotFile.exists() ) {
+            store.submit( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        caConnector.warmUp( HotTileTracker.readSnapshot( snapshotFile ) );
+                    } catch ( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                    } catch ( Exception e ) {
+                        LOG.warn( "Warming up from " + snapshotFile + " failed: " + e.getMessage() );
+                    }
+                }
+            } );
+        }
+    }
+
+    private ReadThroughLoader createReadThroughLoader( CassandraTileStoreJAXB.TileDataSet.ReadThrough config,
+                                                       String tileDataSetId ) throws ResourceInitException {
+        if ( config == null ) {
+            return null;
+        }
+        TileStoreManager tileStoreManager = workspace.getSubsystemManager( TileStoreManager.class );
+        TileStore upstream = tileStoreManager.get( config.getTileStoreId() );
+        if ( upstream == null ) {
+            throw new ResourceInitException( "No tile store with id " + config.getTileStoreId() + " is available!" );
+        }
+        return new ReadThroughLoader( upstream, valueOf( config.getTileDataSetId(), tileDataSetId ),
+                                      valueOf( config.getThreads(), 4 ), valueOf( config.getQueueSize(), 64 ),
+                                      valueOf( config.isWriteBack(), true ), valueOf( config.getTimeout(), 10000L ) );
+    }
+
+    private static TileOptimizer createTileOptimizer( CassandraTileStoreJAXB.TileOptimization config ) {
+        if ( config == null ) {
+            return null;
+        }
+        return new TileOptimizer( valueOf( config.getThreads(), 2 ), valueOf( config.getQueueSize(), 64 ),
+                                  valueOf( config.isQuantize(), false ), valueOf( config.isSkipBlank(), false ) );
+    }
+
+    private static TileOverzoom createOverzoom( CassandraTileStoreJAXB.TileDataSet.Overzoom config,
+                                               CassandraConnector caConnector ) {
+        if ( config == null ) {
+            return null;
+        }
+        LocalTileCache cache = new LocalTileCache( valueOf( config.getCacheBytes(), 67108864L ),
+                                                   valueOf( config.getTimeToLive(), 3600000L ) );
+        return new TileOverzoom( caConnector, valueOf( config.getMaxLevels(), 2 ), cache );
+    }
+
+    private HotTileTracker createHotTileTracker( CassandraTileStoreJAXB.TileDataSet.HotTiles config, URL configUrl ) {
+        if ( config == null ) {
+            return null;
+        }
+        File snapshotFile = null;
+        if ( config.getSnapshotFile() != null ) {
+            snapshotFile = resolveFile( config.getSnapshotFile(), configUrl );
+        }
+        return new HotTileTracker( valueOf( config.getTopK(), 100 ), valueOf( config.getSketchWidth(), 2048 ),
+                                   snapshotFile );
+    }
+
+    /**
+     * Resolves a file name relative to the configuration file, or to the workspace directory if the configuration is
+     * not read from the file system (e.g. from a jar).
+     * 
+     * @return the file, <code>null</code> if the name cannot be resolved
+     */
+    private File resolveFile( String fileName, URL configUrl ) {
+        File file = new File( fileName );
+        if ( file.isAbsolute() ) {
+            return file;
+        }
+        if ( "file".equals( configUrl.getProtocol() ) ) {
+            try {
+                return new File( new URL( configUrl, fileName ).toURI() );
+            } catch ( MalformedURLException e ) {
+                LOG.warn( "Could not resolve " + fileName + " against " + configUrl + ": " + e.getMessage() );
+                return null;
+            } catch ( URISyntaxException e ) {
+                LOG.warn( "Could not resolve " + fileName + " against " + configUrl + ": " + e.getMessage() );
+                return null;
+            }
+        }
+        File location = workspace.getLocation();
+        if ( location == null ) {
+            LOG.warn( "Could not resolve " + fileName + ", " + configUrl + " is no file and the workspace has no "
+                      + "directory. Snapshots are disabled." );
+            return null;
+        }
+        return new File( location, fileName );
+    }
+
+    private static TileEvictionJob createEvictionJob( CassandraTileStoreJAXB.TileDataSet.Eviction config,
+                                                      CassandraConnector caConnector ) {
+        return new TileEvictionJob( caConnector, valueOf( config.getHorizon(), -1L ),
+                                    valueOf( config.getMaxTiles(), -1L ), valueOf( config.getProtectedLevels(), 0 ),
+                                    valueOf( config.getThreads(), 4 ), valueOf( config.getMaxRowsPerSecond(), 5000.0 ),
+                                    valueOf( config.getMaxDeletesPerSecond(), 500.0 ) );
+    }
+
+    private static <T> T valueOf( T value, T defaultValue ) {
+        return value != null ? value : defaultValue;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public Class<? extends ResourceManager>[] getDependencies() {
@@ -151,9 +337,27 @@ public class CassandraTileStoreProvider implements TileStoreProvider {
         return CONFIG_SCHEMA;
     }    
     
+    /**
+     * Returns the configurations of the upstream tile stores of the read-through tile data sets, so they are
+     * initialized first.
+     */
     @Override
     public List<File> getTileStoreDependencies( File config ) {
-        return Collections.<File> emptyList();
+        List<File> dependencies = new ArrayList<File>();
+        try {
+            CassandraTileStoreJAXB jaxbConfig = (CassandraTileStoreJAXB) unmarshall( JAXB_PACKAGE, CONFIG_SCHEMA,
+                                                                                     config.toURI().toURL(),
+                                                                                     workspace );
+            for ( CassandraTileStoreJAXB.TileDataSet tds : jaxbConfig.getTileDataSet() ) {
+                if ( tds.getReadThrough() != null ) {
+                    dependencies.add( new File( config.getParentFile(), tds.getReadThrough().getTileStoreId() + ".xml" ) );
+                }
+            }
+        } catch ( Exception e ) {
+            LOG.warn( "Could not determine tile store dependencies of " + config + ": " + e.getMessage() );
+            return Collections.<File> emptyList();
+        }
+        return dependencies;
     }
 
 }
@@ -36,12 +36,22 @@
 
 package org.deegree.tile.persistence.cassandra;
 
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.toByteArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataSet;
 import org.deegree.tile.TileIOException;
 import org.deegree.tile.persistence.AbstractTileStoreTransaction;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
 
 /**
- * TileStoreTransaction to add or remove tiles in cassandra, yet to implement ...
+ * TileStoreTransaction to add or remove tiles in cassandra. Added tiles pass the {@link TileOptimizer} of the store,
+ * if configured.
  * 
  * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
  * @author last edited by: $Author$
@@ -50,19 +60,48 @@ import org.deegree.tile.persistence.AbstractTileStoreTransaction;
  */
 public class CassandraTileStoreTransaction extends AbstractTileStoreTransaction {
 
+    private final String id;
+
+    private final CassandraTileStore store;
+
     public CassandraTileStoreTransaction(String id, CassandraTileStore store) {
         super( store, id );        
+        this.id = id;
+        this.store = store;
     }
     
     @Override
     public void put( String tileDataLevel, Tile tile, long x, long y ) throws TileIOException {
-        throw new UnsupportedOperationException( "Not supported yet by deegree cassandra module." ); 
+        byte[] image;
+        InputStream in = null;
+        try {
+            in = tile.getAsStream();
+            image = toByteArray( in );
+        } catch ( IOException e ) {
+            throw new TileIOException( "Error reading tile", e );
+        } finally {
+            closeQuietly( in );
+        }
+
+        TileOptimizer optimizer = store.getTileOptimizer();
+        if ( optimizer == null ) {
+            getConnector().store( tileDataLevel, x, y, ByteBuffer.wrap( image ) );
+            return;
+        }
+        getConnector().store( tileDataLevel, x, y, optimizer.optimize( image ).getImage() );
     }
 
     @Override
     public void delete(String tileDataLevel, long x, long y) throws TileIOException {
-        throw new UnsupportedOperationException( "Not supported yet by deegree cassandra module." );
+        getConnector().remove( tileDataLevel, x, y );
     }
 
+    private CassandraConnector getConnector() {
+        TileDataSet tds = store.getTileDataSet( id );
+        if ( !( tds instanceof CassandraTileDataSet ) ) {
+            throw new TileIOException( "No tile data set with id " + id + " in cassandra tile store." );
+        }
+        return ( (CassandraTileDataSet) tds ).getConnector();
+    }
     
 }
@@ -0,0 +1,509 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.deegree.tile.TileIOException;
+import org.slf4j.Logger;
+
+/**
+ * Shrinks png tiles before they are written to Cassandra.<br/>
+ * <br/>
+ * Tiles are decoded and re-encoded with the smallest lossless pixel layout: a palette if the tile has at most 256
+ * colors (1 color for uniform tiles), no alpha channel if the tile is opaque. Optionally tiles with more colors are
+ * quantized to a 256 color palette, which is lossy. The original tile is kept if it is smaller. Uniform tiles of the
+ * same size and color share one encoding. Fully transparent tiles are reported as blank and can be replaced by the
+ * shared blank encoding in any case. {@link #optimize(byte[])} works on the calling thread, tiles passed to
+ * {@link #submit(byte[])} are optimized by a bounded pool of worker threads; if all workers are busy and the queue is
+ * full the submitting thread does the work. The counters are published via JMX ({@link TileOptimizerMBean}) and logged
+ * when the optimizer is destroyed.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileOptimizer implements TileOptimizerMBean {
+
+    private static final Logger LOG = getLogger( TileOptimizer.class );
+
+    private static final int MAX_PALETTE = 256;
+
+    // maximum number of distinct uniform tiles whose encoding is shared
+    private static final int MAX_UNIFORM_ENCODINGS = 64;
+
+    private final boolean quantize;
+
+    private final boolean skipBlank;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, byte[]> uniformEncodings = new ConcurrentHashMap<String, byte[]>();
+
+    private final AtomicLong tiles = new AtomicLong();
+
+    private final AtomicLong uniformTiles = new AtomicLong();
+
+    private final AtomicLong blankTiles = new AtomicLong();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * Creates a new {@link TileOptimizer} instance.
+     * 
+     * @param threads
+     *            number of worker threads
+     * @param queueSize
+     *            number of tiles waiting for a worker
+     * @param quantize
+     *            <code>true</code> if tiles with more than 256 colors should be reduced to 256 colors (lossy)
+     * @param skipBlank
+     *            <code>true</code> if fully transparent tiles should always be replaced by the shared blank encoding
+     */
+    public TileOptimizer( int threads, int queueSize, boolean quantize, boolean skipBlank ) {
+        this.quantize = quantize;
+        this.skipBlank = skipBlank;
+        this.executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<Runnable>( queueSize ), new ThreadFactory() {
+                                                    @Override
+                                                    public Thread newThread( Runnable r ) {
+                                                        Thread thread = new Thread( r, "cassandra-tilestore-optimizer" );
+                                                        thread.setDaemon( true );
+                                                        return thread;
+                                                    }
+                                                }, new CallerRunsUnlessShutdown() );
+    }
+
+    /**
+     * @return <code>true</code> if fully transparent tiles are always replaced by the shared blank encoding
+     */
+    public boolean isSkipBlank() {
+        return skipBlank;
+    }
+
+    /**
+     * Optimizes a tile asynchronously, for importing many tiles at once.
+     * 
+     * @param image
+     *            encoded tile, must not be <code>null</code>
+     * @return future of the optimized tile, cancelled if the optimizer is destroyed before the tile is optimized
+     * @throws TileIOException
+     *             if the optimizer is destroyed
+     */
+    public Future<OptimizedTile> submit( final byte[] image ) {
+        try {
+            return executor.submit( new Callable<OptimizedTile>() {
+                @Override
+                public OptimizedTile call() {
+                    return optimizeNow( image );
+                }
+            } );
+        } catch ( RejectedExecutionException e ) {
+            throw new TileIOException( "Tile optimizer is destroyed." );
+        }
+    }
+
+    /**
+     * Optimizes a tile on the calling thread.
+     * 
+     * @param image
+     *            encoded tile, must not be <code>null</code>
+     * @return the optimized tile, never <code>null</code>
+     * @throws TileIOException
+     *             if the optimizer is destroyed
+     */
+    public OptimizedTile optimize( byte[] image ) {
+        if ( executor.isShutdown() ) {
+            throw new TileIOException( "Tile optimizer is destroyed." );
+        }
+        return optimizeNow( image );
+    }
+
+    @Override
+    public long getTiles() {
+        return tiles.get();
+    }
+
+    @Override
+    public long getUniformTiles() {
+        return uniformTiles.get();
+    }
+
+    @Override
+    public long getBlankTiles() {
+        return blankTiles.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    /**
+     * Stops the worker threads, tiles not optimized yet are cancelled.
+     */
+    public void destroy() {
+        for ( Runnable pending : executor.shutdownNow() ) {
+            if ( pending instanceof Future<?> ) {
+                ( (Future<?>) pending ).cancel( false );
+            }
+        }
+        if ( tiles.get() > 0 ) {
+            LOG.info( "Optimized {} tiles from {} to {} bytes, {} uniform, {} blank{}.",
+                      new Object[] { tiles.get(), bytesIn.get(), bytesOut.get(), uniformTiles.get(), blankTiles.get(),
+                                    skipBlank ? " (shared encoding)" : "" } );
+        }
+    }
+
+    private OptimizedTile optimizeNow( byte[] original ) {
+        BufferedImage decoded = decode( original );
+        if ( decoded == null ) {
+            LOG.debug( "Could not decode tile, storing it unchanged." );
+            return account( new OptimizedTile( original, original.length, false, false ) );
+        }
+        if ( !hasArgbPixels( decoded ) ) {
+            // re-encoding from 8 bit ARGB pixels would lose data, e.g. of 16 bit or grayscale tiles
+            LOG.debug( "Tile has no 8 bit RGB(A) or indexed pixels, storing it unchanged." );
+            return account( new OptimizedTile( original, original.length, false, false ) );
+        }
+
+        int width = decoded.getWidth();
+        int height = decoded.getHeight();
+        int[] pixels = decoded.getRGB( 0, 0, width, height, null, 0, width );
+        Map<Integer, Integer> palette = new HashMap<Integer, Integer>();
+        boolean opaque = true;
+        for ( int pixel : pixels ) {
+            opaque &= ( pixel >>> 24 ) == 0xFF;
+            if ( palette.size() <= MAX_PALETTE && !palette.containsKey( pixel ) ) {
+                palette.put( pixel, palette.size() );
+            }
+        }
+
+        if ( palette.size() == 1 ) {
+            return optimizeUniform( original, width, height, pixels[0] );
+        }
+
+        BufferedImage optimized;
+        if ( palette.size() <= MAX_PALETTE ) {
+            int[] colors = new int[palette.size()];
+            for ( Map.Entry<Integer, Integer> entry : palette.entrySet() ) {
+                colors[entry.getValue()] = entry.getKey();
+            }
+            optimized = toIndexed( pixels, width, height, colors, palette );
+        } else if ( quantize ) {
+            Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+            int[] colors = quantize( pixels, indexes );
+            optimized = toIndexed( pixels, width, height, colors, indexes );
+        } else {
+            optimized = new BufferedImage( width, height, opaque ? BufferedImage.TYPE_INT_RGB
+                                                                : BufferedImage.TYPE_INT_ARGB );
+            optimized.setRGB( 0, 0, width, height, pixels, 0, width );
+        }
+
+        byte[] encoded = encode( optimized );
+        byte[] result = encoded != null && encoded.length < original.length ? encoded : original;
+        return account( new OptimizedTile( result, original.length, false, false ) );
+    }
+
+    private OptimizedTile optimizeUniform( byte[] original, int width, int height, int color ) {
+        String key = width + "x" + height + "#" + Integer.toHexString( color );
+        byte[] encoded = uniformEncodings.get( key );
+        if ( encoded == null ) {
+            encoded = encode( toIndexed( new int[width * height], width, height, new int[] { color },
+                                         Collections.singletonMap( 0, 0 ) ) );
+            if ( encoded != null && uniformEncodings.size() < MAX_UNIFORM_ENCODINGS ) {
+                uniformEncodings.putIfAbsent( key, encoded );
+            }
+        }
+        boolean blank = ( color >>> 24 ) == 0;
+        boolean shared = encoded != null && ( encoded.length < original.length || ( blank && skipBlank ) );
+        return account( new OptimizedTile( shared ? encoded : original, original.length, true, blank ) );
+    }
+
+    private OptimizedTile account( OptimizedTile tile ) {
+        tiles.incrementAndGet();
+        if ( tile.isUniform() ) {
+            uniformTiles.incrementAndGet();
+        }
+        if ( tile.isBlank() ) {
+            blankTiles.incrementAndGet();
+        }
+        bytesIn.addAndGet( tile.getOriginalSize() );
+        bytesOut.addAndGet( tile.getSize() );
+        LOG.debug( "Optimized tile from {} to {} bytes{}.", tile.getOriginalSize(), tile.getSize(),
+                   tile.isBlank() ? " (blank)" : ( tile.isUniform() ? " (uniform)" : "" ) );
+        return tile;
+    }
+
+    /**
+     * Builds a palette of at most 256 colors from the most frequent colors reduced to 5 bits per channel, each
+     * original color is mapped to the index of the nearest palette color.
+     */
+    private static int[] quantize( int[] pixels, Map<Integer, Integer> indexes ) {
+        final Map<Integer, long[]> buckets = new HashMap<Integer, long[]>();
+        for ( int pixel : pixels ) {
+            int bucket = pixel & 0xF8F8F8F8;
+            long[] sums = buckets.get( bucket );
+            if ( sums == null ) {
+                sums = new long[5];
+                buckets.put( bucket, sums );
+            }
+            sums[0] += pixel >>> 24;
+            sums[1] += ( pixel >> 16 ) & 0xFF;
+            sums[2] += ( pixel >> 8 ) & 0xFF;
+            sums[3] += pixel & 0xFF;
+            sums[4]++;
+        }
+        List<long[]> popular = new ArrayList<long[]>( buckets.values() );
+        Collections.sort( popular, new Comparator<long[]>() {
+            @Override
+            public int compare( long[] b1, long[] b2 ) {
+                return b1[4] < b2[4] ? 1 : ( b1[4] > b2[4] ? -1 : 0 );
+            }
+        } );
+        int size = Math.min( MAX_PALETTE, popular.size() );
+        int[] colors = new int[size];
+        for ( int i = 0; i < size; i++ ) {
+            long[] sums = popular.get( i );
+            long n = sums[4];
+            colors[i] = (int) ( ( sums[0] / n ) << 24 | ( sums[1] / n ) << 16 | ( sums[2] / n ) << 8 | ( sums[3] / n ) );
+        }
+
+        for ( int pixel : pixels ) {
+            if ( !indexes.containsKey( pixel ) ) {
+                indexes.put( pixel, nearest( colors, pixel ) );
+            }
+        }
+        return colors;
+    }
+
+    private static int nearest( int[] colors, int pixel ) {
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for ( int i = 0; i < colors.length; i++ ) {
+            long distance = 0;
+            for ( int shift = 0; shift < 32; shift += 8 ) {
+                long d = ( ( colors[i] >>> shift ) & 0xFF ) - ( ( pixel >>> shift ) & 0xFF );
+                distance += d * d;
+            }
+            if ( distance < bestDistance ) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static BufferedImage toIndexed( int[] pixels, int width, int height, int[] colors,
+                                            Map<Integer, Integer> indexes ) {
+        int bits = colors.length <= 2 ? 1 : ( colors.length <= 4 ? 2 : ( colors.length <= 16 ? 4 : 8 ) );
+        byte[] r = new byte[colors.length];
+        byte[] g = new byte[colors.length];
+        byte[] b = new byte[colors.length];
+        byte[] a = new byte[colors.length];
+        for ( int i = 0; i < colors.length; i++ ) {
+            a[i] = (byte) ( colors[i] >>> 24 );
+            r[i] = (byte) ( colors[i] >> 16 );
+            g[i] = (byte) ( colors[i] >> 8 );
+            b[i] = (byte) colors[i];
+        }
+        IndexColorModel colorModel = new IndexColorModel( bits, colors.length, r, g, b, a );
+        BufferedImage image = new BufferedImage( width, height, bits < 8 ? BufferedImage.TYPE_BYTE_BINARY
+                                                                        : BufferedImage.TYPE_BYTE_INDEXED, colorModel );
+        WritableRaster raster = image.getRaster();
+        for ( int y = 0; y < height; y++ ) {
+            for ( int x = 0; x < width; x++ ) {
+                raster.setSample( x, y, 0, indexes.get( pixels[y * width + x] ) );
+            }
+        }
+        return image;
+    }
+
+    /**
+     * @return <code>true</code> if the pixels of the image are represented exactly by {@link BufferedImage#getRGB}
+     */
+    private static boolean hasArgbPixels( BufferedImage image ) {
+        ColorModel colorModel = image.getColorModel();
+        if ( colorModel instanceof IndexColorModel ) {
+            return true;
+        }
+        if ( colorModel.getColorSpace().getType() != ColorSpace.TYPE_RGB ) {
+            return false;
+        }
+        for ( int size : colorModel.getComponentSize() ) {
+            if ( size != 8 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static BufferedImage decode( byte[] image ) {
+        InputStream in = new ByteArrayInputStream( image );
+        try {
+            return ImageIO.read( in );
+        } catch ( IOException e ) {
+            return null;
+        } finally {
+            closeQuietly( in );
+        }
+    }
+
+    private static byte[] encode( BufferedImage image ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            if ( !ImageIO.write( image, "png", out ) ) {
+                return null;
+            }
+        } catch ( IOException e ) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Result of a {@link TileOptimizer}.
+     */
+    public static class OptimizedTile {
+
+        private final byte[] image;
+
+        private final int originalSize;
+
+        private final boolean uniform;
+
+        private final boolean blank;
+
+        private OptimizedTile( byte[] image, int originalSize, boolean uniform, boolean blank ) {
+            this.image = image;
+            this.originalSize = originalSize;
+            this.uniform = uniform;
+            this.blank = blank;
+        }
+
+        /**
+         * @return the optimized tile, never <code>null</code>
+         */
+        public ByteBuffer getImage() {
+            return ByteBuffer.wrap( image );
+        }
+
+        /**
+         * @return size of the optimized tile
+         */
+        public int getSize() {
+            return image.length;
+        }
+
+        /**
+         * @return size of the tile before optimization
+         */
+        public int getOriginalSize() {
+            return originalSize;
+        }
+
+        /**
+         * @return <code>true</code> if all pixels of the tile have the same color (including fully transparent tiles)
+         */
+        public boolean isUniform() {
+            return uniform;
+        }
+
+        /**
+         * @return <code>true</code> if all pixels of the tile are fully transparent
+         */
+        public boolean isBlank() {
+            return blank;
+        }
+    }
+
+
+    /**
+     * Lets the submitting thread do the work if the queue is full, rejects tiles once the optimizer is destroyed
+     * (unlike {@link ThreadPoolExecutor.CallerRunsPolicy}, which silently discards them).
+     */
+    private static class CallerRunsUnlessShutdown implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution( Runnable r, ThreadPoolExecutor executor ) {
+            if ( executor.isShutdown() ) {
+                throw new RejectedExecutionException( "Tile optimizer is destroyed." );
+            }
+            r.run();
+        }
+    }
+
+}
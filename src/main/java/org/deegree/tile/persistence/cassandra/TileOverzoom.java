@@ -0,0 +1,435 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.deegree.tile.Tiles.calcTileEnvelope;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.ImageIO;
+
+import org.deegree.geometry.Envelope;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.LocalTileCache;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Synthesizes tiles missing in Cassandra from the nearest existing ancestor tile: the part of the ancestor covering the
+ * missing tile is cropped and scaled up to the tile size. Synthesized tiles are cached locally.<br/>
+ * <br/>
+ * Only ancestors whose tile fully contains the missing tile are used, which is always the case for pyramids where each
+ * level halves the tile size of the level above.<br/>
+ * <br/>
+ * Requests covering many tiles use a {@link Request}, which fetches the ancestors asynchronously and shares fetched and
+ * decoded ancestors between sibling tiles.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileOverzoom {
+
+    private static final Logger LOG = getLogger( TileOverzoom.class );
+
+    // tolerance for rounding errors when comparing tile envelopes, in tile widths
+    private static final double EPSILON = 1e-6;
+
+    private final CassandraConnector caConnector;
+
+    private final int maxLevels;
+
+    private final LocalTileCache cache;
+
+    /**
+     * Creates a new {@link TileOverzoom} instance.
+     * 
+     * @param caConnector
+     *            connector to fetch the ancestor tiles with, must not be <code>null</code>
+     * @param maxLevels
+     *            maximum number of levels to search upwards for an ancestor tile
+     * @param cache
+     *            cache for synthesized tiles, must not be <code>null</code>
+     */
+    public TileOverzoom( CassandraConnector caConnector, int maxLevels, LocalTileCache cache ) {
+        this.caConnector = caConnector;
+        this.maxLevels = maxLevels;
+        this.cache = cache;
+    }
+
+    /**
+     * Synthesizes a missing tile, the ancestor tiles are fetched synchronously.
+     * 
+     * @param metadata
+     *            tile matrix of the missing tile, must not be <code>null</code>
+     * @param x
+     *            column index of the missing tile
+     * @param y
+     *            row index of the missing tile
+     * @return the synthesized png image or <code>null</code> if no ancestor tile exists
+     * @throws TileIOException
+     *             if fetching or decoding an ancestor tile failed
+     */
+    public ByteBuffer synthesize( TileMatrix metadata, long x, long y ) {
+        ByteBuffer cached = getCached( metadata, x, y );
+        if ( cached != null ) {
+            return cached;
+        }
+        Envelope bbox = calcTileEnvelope( metadata, x, y );
+        for ( Ancestor ancestor : findCandidates( metadata, bbox ) ) {
+            ByteBuffer ancestorImage = caConnector.resolv( ancestor.matrix.getIdentifier(), ancestor.x, ancestor.y );
+            if ( ancestorImage != null ) {
+                return crop( decode( ancestorImage ), ancestor, metadata, x, y, bbox );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a new request for synthesizing several tiles, never <code>null</code>
+     */
+    public Request newRequest() {
+        return new Request();
+    }
+
+    /**
+     * Synthesizes the missing tiles of a single request (e.g. of all tiles of an envelope). Tiles synthesized before are
+     * taken from the cache by {@link #getCached(TileMatrix, long, long)}. The ancestor of every other missing tile is
+     * fetched asynchronously by {@link #findAncestor(TileMatrix, long, long)}, an ancestor shared by several missing
+     * tiles is fetched once. {@link #synthesize(TileMatrix, long, long, Ancestor)} decodes each ancestor only once per
+     * request, it must only be called by a single thread.
+     */
+    public class Request {
+
+        // ancestor fetches by ancestor key, shared by sibling tiles
+        private final ConcurrentMap<String, ListenableFuture<ByteBuffer>> fetches;
+
+        private final Map<String, BufferedImage> decoded = new HashMap<String, BufferedImage>();
+
+        private Request() {
+            fetches = new ConcurrentHashMap<String, ListenableFuture<ByteBuffer>>();
+        }
+
+        /**
+         * Returns a missing tile synthesized before.
+         * 
+         * @param metadata
+         *            tile matrix of the missing tile, must not be <code>null</code>
+         * @param x
+         *            column index of the missing tile
+         * @param y
+         *            row index of the missing tile
+         * @return the synthesized png image or <code>null</code> if it is not cached (or expired)
+         */
+        public ByteBuffer getCached( TileMatrix metadata, long x, long y ) {
+            return TileOverzoom.this.getCached( metadata, x, y );
+        }
+
+        /**
+         * Searches the nearest existing ancestor of a missing tile without blocking the calling thread.
+         * 
+         * @param metadata
+         *            tile matrix of the missing tile, must not be <code>null</code>
+         * @param x
+         *            column index of the missing tile
+         * @param y
+         *            row index of the missing tile
+         * @return future of the ancestor, the ancestor is <code>null</code> if none exists, fails if fetching an
+         *         ancestor failed
+         */
+        public ListenableFuture<Ancestor> findAncestor( TileMatrix metadata, long x, long y ) {
+            return findAncestor( findCandidates( metadata, calcTileEnvelope( metadata, x, y ) ), 0 );
+        }
+
+        private ListenableFuture<Ancestor> findAncestor( final List<Ancestor> candidates, final int index ) {
+            if ( index >= candidates.size() ) {
+                return Futures.immediateFuture( null );
+            }
+            final Ancestor candidate = candidates.get( index );
+            return Futures.transform( fetch( candidate ), new AsyncFunction<ByteBuffer, Ancestor>() {
+                @Override
+                public ListenableFuture<Ancestor> apply( ByteBuffer image ) {
+                    if ( image == null ) {
+                        return findAncestor( candidates, index + 1 );
+                    }
+                    return Futures.immediateFuture( new Ancestor( candidate, image ) );
+                }
+            } );
+        }
+
+        private ListenableFuture<ByteBuffer> fetch( Ancestor candidate ) {
+            ListenableFuture<ByteBuffer> fetch = fetches.get( candidate.key );
+            if ( fetch != null ) {
+                return fetch;
+            }
+            final SettableFuture<ByteBuffer> created = SettableFuture.create();
+            fetch = fetches.putIfAbsent( candidate.key, created );
+            if ( fetch != null ) {
+                return fetch;
+            }
+            Futures.addCallback( caConnector.resolvAsync( candidate.matrix.getIdentifier(), candidate.x, candidate.y ),
+                                 new FutureCallback<ByteBuffer>() {
+                                     @Override
+                                     public void onSuccess( ByteBuffer image ) {
+                                         created.set( image );
+                                     }
+
+                                     @Override
+                                     public void onFailure( Throwable t ) {
+                                         created.setException( t );
+                                     }
+                                 } );
+            return created;
+        }
+
+        /**
+         * Synthesizes a missing tile from its ancestor.
+         * 
+         * @param metadata
+         *            tile matrix of the missing tile, must not be <code>null</code>
+         * @param x
+         *            column index of the missing tile
+         * @param y
+         *            row index of the missing tile
+         * @param ancestor
+         *            ancestor found by {@link #findAncestor(TileMatrix, long, long)}, must not be <code>null</code>
+         * @return the synthesized png image, never <code>null</code>
+         * @throws TileIOException
+         *             if decoding the ancestor tile failed
+         */
+        public ByteBuffer synthesize( TileMatrix metadata, long x, long y, Ancestor ancestor ) {
+            BufferedImage source = decoded.get( ancestor.key );
+            if ( source == null ) {
+                source = decode( ancestor.image );
+                decoded.put( ancestor.key, source );
+            }
+            return crop( source, ancestor, metadata, x, y, calcTileEnvelope( metadata, x, y ) );
+        }
+    }
+
+    /**
+     * Ancestor tile of a missing tile.
+     */
+    public static class Ancestor {
+
+        private final TileMatrix matrix;
+
+        private final long x;
+
+        private final long y;
+
+        private final Envelope bbox;
+
+        private final String key;
+
+        private final ByteBuffer image;
+
+        private Ancestor( TileMatrix matrix, long x, long y, Envelope bbox ) {
+            this.matrix = matrix;
+            this.x = x;
+            this.y = y;
+            this.bbox = bbox;
+            this.key = getCacheKey( matrix, x, y );
+            this.image = null;
+        }
+
+        private Ancestor( Ancestor candidate, ByteBuffer image ) {
+            this.matrix = candidate.matrix;
+            this.x = candidate.x;
+            this.y = candidate.y;
+            this.bbox = candidate.bbox;
+            this.key = candidate.key;
+            this.image = image;
+        }
+
+        /**
+         * @return tile matrix of the ancestor tile, never <code>null</code>
+         */
+        public TileMatrix getMatrix() {
+            return matrix;
+        }
+
+        /**
+         * @return column index of the ancestor tile
+         */
+        public long getX() {
+            return x;
+        }
+
+        /**
+         * @return row index of the ancestor tile
+         */
+        public long getY() {
+            return y;
+        }
+    }
+
+    private ByteBuffer getCached( TileMatrix metadata, long x, long y ) {
+        LocalTileCache.Entry cached = cache.get( getCacheKey( metadata, x, y ) );
+        if ( cached != null && cached.isFresh() ) {
+            return cached.getImage();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the tiles of the levels above that fully contain the given tile envelope, nearest level first.
+     */
+    List<Ancestor> findCandidates( TileMatrix metadata, Envelope bbox ) {
+        List<TileDataLevel> levels = caConnector.getTileDataSet().getTileDataLevels();
+        int levelIndex = indexOf( levels, metadata );
+        double centerX = ( bbox.getMin().get0() + bbox.getMax().get0() ) / 2;
+        double centerY = ( bbox.getMin().get1() + bbox.getMax().get1() ) / 2;
+
+        List<Ancestor> candidates = new ArrayList<Ancestor>( maxLevels );
+        for ( int i = levelIndex - 1; i >= 0 && i >= levelIndex - maxLevels; i-- ) {
+            TileMatrix ancestor = levels.get( i ).getMetadata();
+            Envelope matrixEnvelope = ancestor.getSpatialMetadata().getEnvelope();
+            long ax = (long) Math.floor( ( centerX - matrixEnvelope.getMin().get0() ) / ancestor.getTileWidth() );
+            long ay = (long) Math.floor( ( matrixEnvelope.getMax().get1() - centerY ) / ancestor.getTileHeight() );
+            if ( ax < 0 || ay < 0 || ax >= ancestor.getNumTilesX() || ay >= ancestor.getNumTilesY() ) {
+                continue;
+            }
+            Envelope ancestorBbox = calcTileEnvelope( ancestor, ax, ay );
+            if ( contains( ancestorBbox, bbox, ancestor.getTileWidth() * EPSILON ) ) {
+                candidates.add( new Ancestor( ancestor, ax, ay, ancestorBbox ) );
+            }
+        }
+        return candidates;
+    }
+
+    private ByteBuffer crop( BufferedImage source, Ancestor ancestor, TileMatrix metadata, long x, long y,
+                             Envelope bbox ) {
+        ByteBuffer image = crop( source, ancestor.matrix, ancestor.bbox, metadata, bbox );
+        String cacheKey = getCacheKey( metadata, x, y );
+        LOG.debug( "Synthesized tile {} from level {}.", cacheKey, ancestor.matrix.getIdentifier() );
+        cache.put( cacheKey, image );
+        return image;
+    }
+
+    static ByteBuffer crop( BufferedImage source, TileMatrix ancestor, Envelope ancestorBbox, TileMatrix metadata,
+                            Envelope bbox ) {
+        double scaleX = source.getWidth() / ancestor.getTileWidth();
+        double scaleY = source.getHeight() / ancestor.getTileHeight();
+        int sx1 = (int) Math.round( ( bbox.getMin().get0() - ancestorBbox.getMin().get0() ) * scaleX );
+        int sx2 = (int) Math.round( ( bbox.getMax().get0() - ancestorBbox.getMin().get0() ) * scaleX );
+        int sy1 = (int) Math.round( ( ancestorBbox.getMax().get1() - bbox.getMax().get1() ) * scaleY );
+        int sy2 = (int) Math.round( ( ancestorBbox.getMax().get1() - bbox.getMin().get1() ) * scaleY );
+
+        // TileMatrix reports the pixel size of the tiles as long
+        int width = (int) metadata.getTilePixelsX();
+        int height = (int) metadata.getTilePixelsY();
+        BufferedImage target = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+            g.drawImage( source, 0, 0, width, height, sx1, sy1, sx2, sy2, null );
+        } finally {
+            g.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write( target, "png", out );
+        } catch ( IOException e ) {
+            throw new TileIOException( "Error encoding synthesized tile", e );
+        }
+        return ByteBuffer.wrap( out.toByteArray() );
+    }
+
+    private static String getCacheKey( TileMatrix metadata, long x, long y ) {
+        return metadata.getIdentifier() + "|" + x + "|" + y;
+    }
+
+    static BufferedImage decode( ByteBuffer image ) {
+        byte[] bytes = new byte[image.remaining()];
+        image.duplicate().get( bytes );
+        InputStream in = new ByteArrayInputStream( bytes );
+        try {
+            BufferedImage decoded = ImageIO.read( in );
+            if ( decoded == null ) {
+                throw new TileIOException( "Error decoding ancestor tile" );
+            }
+            return decoded;
+        } catch ( IOException e ) {
+            throw new TileIOException( "Error decoding ancestor tile", e );
+        } finally {
+            closeQuietly( in );
+        }
+    }
+
+    private static int indexOf( List<TileDataLevel> levels, TileMatrix metadata ) {
+        for ( int i = 0; i < levels.size(); i++ ) {
+            if ( levels.get( i ).getMetadata().getIdentifier().equals( metadata.getIdentifier() ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains( Envelope outer, Envelope inner, double epsilon ) {
+        return outer.getMin().get0() <= inner.getMin().get0() + epsilon
+               && outer.getMin().get1() <= inner.getMin().get1() + epsilon
+               && outer.getMax().get0() >= inner.getMax().get0() - epsilon
+               && outer.getMax().get1() >= inner.getMax().get1() - epsilon;
+    }
+
+}
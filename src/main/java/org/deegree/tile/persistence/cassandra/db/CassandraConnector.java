@@ -36,11 +36,27 @@
 
 package org.deegree.tile.persistence.cassandra.db;
 
-import com.datastax.driver.core.Row;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 import org.deegree.tile.TileDataLevel;
 import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+import org.slf4j.Logger;
+
+import static org.slf4j.LoggerFactory.getLogger;
 
 /**
  * <p>
@@ -53,8 +69,19 @@ import org.deegree.tile.TileDataSet;
  */
 public class CassandraConnector {
     
+    private static final Logger LOG = getLogger( CassandraConnector.class );
+
+    // maximum number of queries in flight while warming up the local cache
+    private static final int WARM_UP_PENDING = 32;
+
     private TileDataSet tds;
     
+    private LocalTileCache localCache;
+    
+    private HotTileTracker hotTileTracker;
+    
+    private ReadThroughLoader readThroughLoader;
+    
     final private CassandraDB cassandraDB;
     
     final private String columnFamily;
@@ -77,6 +104,14 @@ public class CassandraConnector {
         return this.columnFamily;
     }
     
+    /**
+     *
+     * @return
+     */
+    public CassandraDB getCassandraDB() {
+        return this.cassandraDB;
+    }
+    
     /**
      * Set corresponfing TileDataSet
      * @param tds
@@ -93,6 +128,80 @@ public class CassandraConnector {
         return this.tds;
     }
 
+    /**
+     * Set local cache tier, also used to serve stale tiles while cassandra fails
+     * @param localCache may be <code>null</code> (no local cache)
+     */
+    public void setLocalCache( LocalTileCache localCache ) {
+        this.localCache = localCache;
+    }
+
+    /**
+     * Set tracker of the most requested tiles
+     * @param hotTileTracker may be <code>null</code> (no tracking)
+     */
+    public void setHotTileTracker( HotTileTracker hotTileTracker ) {
+        this.hotTileTracker = hotTileTracker;
+    }
+
+    /**
+     * get tracker of the most requested tiles
+     * @return HotTileTracker or <code>null</code> if requests are not tracked
+     */
+    public HotTileTracker getHotTileTracker() {
+        return this.hotTileTracker;
+    }
+
+    /**
+     * Set loader fetching tiles missing in cassandra from an upstream tile store
+     * @param readThroughLoader may be <code>null</code> (missing tiles are not fetched)
+     */
+    public void setReadThroughLoader( ReadThroughLoader readThroughLoader ) {
+        this.readThroughLoader = readThroughLoader;
+    }
+
+    /**
+     * Releases the resources held by this connector.
+     */
+    public void destroy() {
+        if ( readThroughLoader != null ) {
+            readThroughLoader.destroy();
+        }
+    }
+
+    /**
+     * Loads tiles into the local cache, e.g. the hottest tiles of a previous run read with
+     * {@link HotTileTracker#readSnapshot(java.io.File)}. Blocks until all tiles are loaded, failures are ignored.
+     * 
+     * @param tiles
+     *            tiles to load, must not be <code>null</code>
+     * @throws InterruptedException
+     *             if the calling thread was interrupted
+     */
+    public void warmUp( List<HotTileTracker.HotTile> tiles ) throws InterruptedException {
+        if ( localCache == null ) {
+            return;
+        }
+        final Semaphore pending = new Semaphore( WARM_UP_PENDING );
+        FutureCallback<ByteBuffer> release = new FutureCallback<ByteBuffer>() {
+            @Override
+            public void onSuccess( ByteBuffer image ) {
+                pending.release();
+            }
+
+            @Override
+            public void onFailure( Throwable t ) {
+                pending.release();
+            }
+        };
+        for ( HotTileTracker.HotTile tile : tiles ) {
+            pending.acquire();
+            Futures.addCallback( resolvAsync( tile.getLevelId(), tile.getX(), tile.getY() ), release );
+        }
+        pending.acquire( WARM_UP_PENDING );
+        LOG.info( "Warmed up local cache with {} tiles of {}.", tiles.size(), columnFamily );
+    }
+
     /**
      * Returns the image file for the specified {@link org.deegree.tile.TileDataLevel} and tile indexes.
      * 
@@ -103,6 +212,8 @@ public class CassandraConnector {
      * @param y
      *            row index of the tile (starting at 0)
      * @return tile file or <code>null</code> if the tile matrix does not exist (or indexes are out of range)
+     * @throws TileIOException
+     *            if cassandra failed and no stale tile is cached locally
      */
     public ByteBuffer resolv( String matrixId, long x, long y ) {
         TileDataLevel tileMatrix = tds.getTileDataLevel( matrixId );
@@ -110,25 +221,286 @@ public class CassandraConnector {
             return null;
         }
         
+        String rowKey = getRowKey( tileMatrix, x, y );
+        String cacheKey = getCacheKey( rowKey );
+        LocalTileCache.Entry cached = localCache != null ? localCache.get( cacheKey ) : null;
+        if ( cached != null && cached.isFresh() ) {
+            return cached.getImage();
+        }
+
+        ByteBuffer image;
+        try {
+            image = cassandraDB.getTileImage( rowKey, this.columnFamily );
+        } catch ( TileIOException e ) {
+            if ( cached == null ) {
+                throw e;
+            }
+            LOG.debug( "Serving stale tile {}: {}", rowKey, e.getMessage() );
+            return cached.getImage();
+        }
+        if ( image == null ) {
+            invalidateDeleted( cached, cacheKey );
+        }
+        if ( image == null && readThroughLoader != null ) {
+            try {
+                // the loader fails the fetch after its timeout, a slow upstream store can not block this thread
+                return loadFromUpstream( rowKey, cacheKey, matrixId, x, y ).get();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new TileIOException( "Interrupted while fetching tile " + rowKey + " from upstream store." );
+            } catch ( ExecutionException e ) {
+                throw new TileIOException( "Error fetching tile " + rowKey + " from upstream store, "
+                                           + e.getCause().getMessage(), e.getCause() );
+            }
+        }
+        return cacheImage( image, cacheKey );
+    }
+
+    /**
+     * Returns the image file for the specified {@link org.deegree.tile.TileDataLevel} and tile indexes without
+     * blocking the calling thread, see {@link #resolv(String, long, long)}.
+     * 
+     * @param matrixId
+     *            identifier of the matrix in the matrix set, must not be <code>null</code>
+     * @param x
+     *            column index of the tile (starting at 0)
+     * @param y
+     *            row index of the tile (starting at 0)
+     * @return future of the tile file, the tile file is <code>null</code> if the tile matrix or the tile does not
+     *         exist, fails if cassandra failed and no stale tile is cached locally
+     */
+    public ListenableFuture<ByteBuffer> resolvAsync( String matrixId, long x, long y ) {
+        TileDataLevel tileMatrix = tds.getTileDataLevel( matrixId );
+        if ( tileMatrix == null ) {
+            return Futures.immediateFuture( null );
+        }
+
+        final String rowKey = getRowKey( tileMatrix, x, y );
+        final String cacheKey = getCacheKey( rowKey );
+        final LocalTileCache.Entry cached = localCache != null ? localCache.get( cacheKey ) : null;
+        if ( cached != null && cached.isFresh() ) {
+            return Futures.immediateFuture( cached.getImage() );
+        }
+
+        ListenableFuture<ByteBuffer> fetched = cassandraDB.getTileImageAsync( rowKey, this.columnFamily );
+        ListenableFuture<ByteBuffer> image;
+        if ( readThroughLoader == null ) {
+            image = Futures.transform( fetched, new Function<ByteBuffer, ByteBuffer>() {
+                @Override
+                public ByteBuffer apply( ByteBuffer image ) {
+                    if ( image == null ) {
+                        invalidateDeleted( cached, cacheKey );
+                    }
+                    return cacheImage( image, cacheKey );
+                }
+            } );
+        } else {
+            final String matrix = matrixId;
+            final long column = x;
+            final long tileRow = y;
+            image = Futures.transform( fetched, new AsyncFunction<ByteBuffer, ByteBuffer>() {
+                @Override
+                public ListenableFuture<ByteBuffer> apply( ByteBuffer image ) {
+                    if ( image != null ) {
+                        return Futures.immediateFuture( cacheImage( image, cacheKey ) );
+                    }
+                    invalidateDeleted( cached, cacheKey );
+                    return loadFromUpstream( rowKey, cacheKey, matrix, column, tileRow );
+                }
+            } );
+        }
+        if ( cached == null ) {
+            return image;
+        }
+        return Futures.withFallback( image, new FutureFallback<ByteBuffer>() {
+            @Override
+            public ListenableFuture<ByteBuffer> create( Throwable t ) {
+                LOG.debug( "Serving stale tile {}: {}", rowKey, t.getMessage() );
+                return Futures.immediateFuture( cached.getImage() );
+            }
+        } );
+    }
+
+    private ListenableFuture<ByteBuffer> loadFromUpstream( final String rowKey, final String cacheKey,
+                                                           String matrixId, long x, long y ) {
+        LOG.debug( "Tile {} missing, fetching it from upstream store.", rowKey );
+        ReadThroughLoader.LoadListener listener = new ReadThroughLoader.LoadListener() {
+            @Override
+            public void loaded( final String key, ByteBuffer image ) {
+                if ( localCache != null ) {
+                    localCache.put( cacheKey, image );
+                }
+                if ( readThroughLoader.isWriteBack() ) {
+                    writeBack( key, image );
+                }
+            }
+        };
+        ListenableFuture<ByteBuffer> shared = readThroughLoader.load( rowKey, matrixId, x, y,
+                                                                      tds.getNativeImageFormat(), listener );
+        // the fetch is shared by coalesced requests, cancelling this request must not cancel it
+        final SettableFuture<ByteBuffer> loaded = SettableFuture.create();
+        Futures.addCallback( shared, new FutureCallback<ByteBuffer>() {
+            @Override
+            public void onSuccess( ByteBuffer image ) {
+                loaded.set( image );
+            }
+
+            @Override
+            public void onFailure( Throwable t ) {
+                loaded.setException( t );
+            }
+        } );
+        return Futures.withFallback( loaded, new FutureFallback<ByteBuffer>() {
+            @Override
+            public ListenableFuture<ByteBuffer> create( Throwable t ) {
+                if ( t instanceof TimeoutException ) {
+                    LOG.debug( "Upstream store did not deliver tile {} in time, treating it as missing.", rowKey );
+                    return Futures.immediateFuture( null );
+                }
+                return Futures.immediateFailedFuture( t );
+            }
+        } );
+    }
+
+    private void writeBack( final String rowKey, ByteBuffer image ) {
+        ListenableFuture<ResultSet> write = cassandraDB.putTileImageAsync( rowKey, columnFamily, image );
+        Futures.addCallback( write, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess( ResultSet result ) {
+                LOG.debug( "Wrote tile {} fetched from upstream store.", rowKey );
+            }
+
+            @Override
+            public void onFailure( Throwable t ) {
+                LOG.warn( "Could not write tile " + rowKey + " fetched from upstream store: " + t.getMessage() );
+            }
+        } );
+    }
+
+    private void invalidateDeleted( LocalTileCache.Entry cached, String cacheKey ) {
+        if ( cached != null ) {
+            // the tile is gone, its stale entry must not be served if cassandra fails later on
+            localCache.invalidate( cacheKey );
+        }
+    }
+
+    private ByteBuffer cacheImage( ByteBuffer image, String cacheKey ) {
+        if ( localCache != null && image != null ) {
+            localCache.put( cacheKey, image );
+        }
+        return image;
+    }
+
+    private String getCacheKey( String rowKey ) {
+        return columnFamily + cassandraDB.getSeparatorChar() + rowKey;
+    }
+
+    /**
+     * Writes the image file for the specified {@link org.deegree.tile.TileDataLevel} and tile indexes.
+     * 
+     * @param matrixId
+     *            identifier of the matrix in the matrix set, must not be <code>null</code>
+     * @param x
+     *            column index of the tile (starting at 0)
+     * @param y
+     *            row index of the tile (starting at 0)
+     * @param image
+     *            tile image in the native image format of the TileDataSet, must not be <code>null</code>
+     * @throws TileIOException
+     *            if the tile matrix does not exist or writing failed
+     */
+    public void store( String matrixId, long x, long y, ByteBuffer image ) {
+        String rowKey = getRowKey( getTileDataLevel( matrixId ), x, y );
+        cassandraDB.putRow( rowKey, columnFamily, image );
+        if ( localCache != null ) {
+            localCache.invalidate( getCacheKey( rowKey ) );
+        }
+    }
+
+    /**
+     * Deletes the image file for the specified {@link org.deegree.tile.TileDataLevel} and tile indexes.
+     * 
+     * @param matrixId
+     *            identifier of the matrix in the matrix set, must not be <code>null</code>
+     * @param x
+     *            column index of the tile (starting at 0)
+     * @param y
+     *            row index of the tile (starting at 0)
+     * @throws TileIOException
+     *            if the tile matrix does not exist or deleting failed
+     */
+    public void remove( String matrixId, long x, long y ) {
+        String rowKey = getRowKey( getTileDataLevel( matrixId ), x, y );
+        cassandraDB.deleteRow( rowKey, columnFamily );
+        if ( localCache != null ) {
+            localCache.invalidate( getCacheKey( rowKey ) );
+        }
+    }
+
+    private TileDataLevel getTileDataLevel( String matrixId ) {
+        TileDataLevel tileMatrix = tds.getTileDataLevel( matrixId );
+        if ( tileMatrix == null ) {
+            throw new TileIOException( "No tile matrix " + matrixId + " in column family " + columnFamily );
+        }
+        return tileMatrix;
+    }
+
+    /**
+     * Decodes a row key, inverse of the key layout used by {@link #resolv(String, long, long)}.
+     * 
+     * @param rowKey
+     *            row key of a tile, must not be <code>null</code>
+     * @return level index, column index and row index of the tile (row 0 is the top row, as in
+     *         {@link TileDataLevel#getTile(long, long)})
+     * @throws IllegalArgumentException
+     *             if the row key is malformed or does not belong to a level of the TileDataSet
+     */
+    public long[] parseRowKey( String rowKey ) {
+        String[] parts = splitRowKey( rowKey );
+        if ( !parts[0].equals( getFormatPart() ) ) {
+            throw new IllegalArgumentException( "Row key " + rowKey + " has not the format " + getFormatPart() );
+        }
+        int levelIndex = Integer.parseInt( parts[1] );
+        if ( levelIndex >= tds.getTileDataLevels().size() ) {
+            throw new IllegalArgumentException( "Row key " + rowKey + " refers to unknown level " + levelIndex );
+        }
+        TileDataLevel tileMatrix = tds.getTileDataLevels().get( levelIndex );
+        long x = parseIndex( parts, 2 );
+        long y = getTileCacheYIndex( tileMatrix, parseIndex( parts, 5 ) );
+        return new long[] { levelIndex, x, y };
+    }
+
+    private String[] splitRowKey( String rowKey ) {
+        String[] parts = rowKey.split( Pattern.quote( String.valueOf( cassandraDB.getSeparatorChar() ) ) );
+        if ( parts.length != 8 ) {
+            throw new IllegalArgumentException( "Malformed row key " + rowKey );
+        }
+        return parts;
+    }
+
+    private long parseIndex( String[] parts, int first ) {
+        return Long.parseLong( parts[first] ) * 1000000 + Long.parseLong( parts[first + 1] ) * 1000
+               + Long.parseLong( parts[first + 2] );
+    }
+
+    private String getFormatPart() {
+        return tds.getNativeImageFormat().replaceAll( "image/", "" );
+    }
+
+    private String getRowKey( TileDataLevel tileMatrix, long x, long y ) {
         StringBuilder rowKey = new StringBuilder();
         String levelDirectory = getLevelDirectory( tileMatrix );
         String columnFileNamePart = getColumnFileNamePart( x );
         String rowFileNamePart = getRowFileNamePart( y, tileMatrix );
 
-        rowKey.append( tds.getNativeImageFormat().replaceAll( "image/", "" ) );
+        rowKey.append( getFormatPart() );
         rowKey.append( cassandraDB.getSeparatorChar() );
         rowKey.append( levelDirectory );
         rowKey.append( cassandraDB.getSeparatorChar() );
         rowKey.append( columnFileNamePart );
         rowKey.append( cassandraDB.getSeparatorChar() );        
         rowKey.append( rowFileNamePart );
-
-        Row row = cassandraDB.getRow( rowKey.toString(), this.columnFamily );
-        if ( row == null ) {
-            return null;
-        }
-        
-        return row.getBytes( "img" );
+        return rowKey.toString();
     }
     
      private String getLevelDirectory( TileDataLevel tileMatrix ) {
@@ -38,6 +38,7 @@ package org.deegree.tile.persistence.cassandra.db;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.SimpleStatement;
@@ -46,10 +47,18 @@ import com.datastax.driver.core.policies.ConstantReconnectionPolicy;
 import com.datastax.driver.core.policies.DowngradingConsistencyRetryPolicy;
 import com.datastax.driver.core.policies.LatencyAwarePolicy;
 import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.deegree.tile.TileIOException;
@@ -82,10 +91,16 @@ public class CassandraDB {
     private final String keyspaceName;
         
     private final boolean tileTimestamp = true;
+
+    private CircuitBreaker circuitBreaker;
     
     // static variables
     private final static char separatorChar = '|';
 
+    private final static String MURMUR3_PARTITIONER = "org.apache.cassandra.dht.Murmur3Partitioner";
+
+    private final static String RANDOM_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+
     /**
      * Creates a new {@link CassandraDB} instance.
      * 
@@ -133,6 +148,135 @@ public class CassandraDB {
         }        
     }
     
+    /**
+     * Guards all further queries with a circuit breaker.
+     * 
+     * @param circuitBreaker
+     *          breaker to use, may be <code>null</code> (no breaker)
+     */
+    public void setCircuitBreaker( CircuitBreaker circuitBreaker ) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Creates a new {@link CassandraDB} instance that is not connected to a cluster, subclasses standing in for the
+     * cluster (e.g. in load tests) have to override all query methods they need.
+     */
+    protected CassandraDB() {
+        this.hosts = null;
+        this.keyspaceName = null;
+    }
+
+    /**
+     * Fetch the image of a single tile, guarded by the circuit breaker.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * 
+     * @return image of the tile or <code>null</code> if it does not exist
+     * @throws TileIOException
+     *          if the query failed or the circuit breaker is open
+     */
+    public ByteBuffer getTileImage( String key, String columnFamily ) {
+        if ( circuitBreaker != null && !circuitBreaker.allowRequest() ) {
+            throw new TileIOException( "Circuit breaker open, cassandra db not queried." );
+        }
+
+        ByteBuffer res;
+        long start = System.nanoTime();
+        try {
+            res = fetchTileImage( key, columnFamily );
+        } catch ( TileIOException e ) {
+            if ( circuitBreaker != null ) {
+                circuitBreaker.onFailure( start );
+            }
+            throw e;
+        }
+        if ( circuitBreaker != null ) {
+            circuitBreaker.onSuccess( start, System.nanoTime() - start );
+        }
+        return res;
+    }
+
+    /**
+     * Fetch the image of a single tile without blocking the calling thread, guarded by the circuit breaker.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * 
+     * @return future of the image, the image is <code>null</code> if the tile does not exist, fails if the query
+     *          failed or the circuit breaker is open
+     */
+    public ListenableFuture<ByteBuffer> getTileImageAsync( String key, String columnFamily ) {
+        if ( circuitBreaker != null && !circuitBreaker.allowRequest() ) {
+            return Futures.immediateFailedFuture(
+                    new TileIOException( "Circuit breaker open, cassandra db not queried." ) );
+        }
+
+        final long start = System.nanoTime();
+        ListenableFuture<ByteBuffer> res = fetchTileImageAsync( key, columnFamily );
+        Futures.addCallback( res, new FutureCallback<ByteBuffer>() {
+            @Override
+            public void onSuccess( ByteBuffer result ) {
+                if ( circuitBreaker != null ) {
+                    circuitBreaker.onSuccess( start, System.nanoTime() - start );
+                }
+            }
+
+            @Override
+            public void onFailure( Throwable t ) {
+                if ( circuitBreaker == null ) {
+                    return;
+                }
+                if ( t instanceof CancellationException ) {
+                    // cancelled by the caller, says nothing about the cluster
+                    circuitBreaker.onCancelled( start );
+                } else {
+                    circuitBreaker.onFailure( start );
+                }
+            }
+        } );
+        return res;
+    }
+
+    /**
+     * Fetch the image of a single tile, see {@link #getTileImage(String, String)}.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * 
+     * @return image of the tile or <code>null</code> if it does not exist
+     * @throws TileIOException
+     *          if the query failed
+     */
+    protected ByteBuffer fetchTileImage( String key, String columnFamily ) {
+        Row row = getRow( key, columnFamily );
+        return row != null ? row.getBytes( "img" ) : null;
+    }
+
+    /**
+     * Fetch the image of a single tile without blocking the calling thread, see
+     * {@link #getTileImageAsync(String, String)}.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * 
+     * @return future of the image, the image is <code>null</code> if the tile does not exist, fails if the query
+     *          failed
+     */
+    protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+        return Futures.transform( getRowAsync( key, columnFamily ), new Function<Row, ByteBuffer>() {
+            @Override
+            public ByteBuffer apply( Row row ) {
+                return row != null ? row.getBytes( "img" ) : null;
+            }
+        } );
+    }
+
     /**
      * Fetch single Cassandra row.
      * 
@@ -141,6 +285,8 @@ public class CassandraDB {
      * @param columnFamily
      * 
      * @return
+     * @throws TileIOException
+     *          if the query failed
      */
     public Row getRow( String key, String columnFamily ) {
         Row res = null;
@@ -154,17 +300,52 @@ public class CassandraDB {
         } catch ( Exception e ) {
             throw new TileIOException( "Error while querying cassandra db, " + e.getMessage() );
         }
-        if ( res != null && tileTimestamp == true )
+        // a row without image is deleted or about to be, updating it would recreate it
+        if ( res != null && !res.isNull( "img" ) && tileTimestamp == true )
             setTileTimestamp( key, columnFamily );
         
         return res;
     }
     
+    /**
+     * Fetch single Cassandra row without blocking the calling thread.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * 
+     * @return future of the row, the row is <code>null</code> if it does not exist, fails if the query failed
+     */
+    public ListenableFuture<Row> getRowAsync( final String key, final String columnFamily ) {
+        Statement getTileStatement = new SimpleStatement(
+                "SELECT * FROM " + columnFamily
+                + " WHERE key = \'" + key + "\'" )
+                .setConsistencyLevel(ConsistencyLevel.ONE);
+        return Futures.transform( session.executeAsync( getTileStatement ), new Function<ResultSet, Row>() {
+            @Override
+            public Row apply( ResultSet result ) {
+                Row res = result.one();
+                if ( res != null && !res.isNull( "img" ) && tileTimestamp == true )
+                    setTileTimestampAsync( key, columnFamily );
+                return res;
+            }
+        } );
+    }
+
+    private void setTileTimestampAsync( String key, String columnFamily ) {
+        Statement updateTileTimestamp = new SimpleStatement(
+                "UPDATE " + columnFamily
+                + " SET tileTimestamp = " + System.currentTimeMillis()
+                + " WHERE key = \'" + key + "\'")
+                .setConsistencyLevel(ConsistencyLevel.ONE);
+        session.executeAsync( updateTileTimestamp );
+    }
+
     private void setTileTimestamp(String key, String columnFamily) {
         Statement updateTileTimestamp = new SimpleStatement(
                 "UPDATE " + columnFamily
                 + " SET tileTimestamp = " + System.currentTimeMillis()
-                + "WHERE key = \'" + key + "\'")
+                + " WHERE key = \'" + key + "\'")
                 .setConsistencyLevel(ConsistencyLevel.ONE);
 
         try {
@@ -176,6 +357,157 @@ public class CassandraDB {
         }
     }
     
+    /**
+     * Returns the first and the last token of the token ring of the cluster.
+     * 
+     * @return first and last token, never <code>null</code>
+     * @throws TileIOException
+     *          if the partitioner of the cluster does not hash the keys
+     */
+    public BigInteger[] getTokenRing() {
+        String partitioner = cluster.getMetadata().getPartitioner();
+        if ( MURMUR3_PARTITIONER.equals( partitioner ) ) {
+            return new BigInteger[] { BigInteger.valueOf( Long.MIN_VALUE ), BigInteger.valueOf( Long.MAX_VALUE ) };
+        }
+        if ( RANDOM_PARTITIONER.equals( partitioner ) ) {
+            return new BigInteger[] { BigInteger.ZERO, BigInteger.ONE.shiftLeft( 127 ) };
+        }
+        throw new TileIOException( "Token range scans are not supported for partitioner " + partitioner );
+    }
+
+    /**
+     * Fetch all rows with a key token in the given range, further pages are fetched while iterating.
+     * 
+     * @param columnFamily
+     * @param columns
+     *          selected columns, e.g. <code>key, tileTimestamp</code>
+     * @param firstToken
+     *          first token of the range (inclusive)
+     * @param lastToken
+     *          last token of the range (inclusive)
+     * @param fetchSize
+     *          number of rows per page
+     * @return rows of the range
+     * @throws TileIOException
+     *          if the query failed
+     */
+    public Iterable<Row> scanTokenRange( String columnFamily, String columns, BigInteger firstToken,
+                                         BigInteger lastToken, int fetchSize ) {
+        Statement scanStatement = new SimpleStatement(
+                "SELECT " + columns + " FROM " + columnFamily
+                + " WHERE token(key) >= " + firstToken
+                + " AND token(key) <= " + lastToken )
+                .setConsistencyLevel(ConsistencyLevel.ONE)
+                .setFetchSize(fetchSize);
+        try {
+            return session.execute(scanStatement);
+        } catch ( Exception e ) {
+            throw new TileIOException( "Error while scanning cassandra db, " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Write the image of a single Cassandra row.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * @param img
+     *          image to write, must not be <code>null</code>
+     * @throws TileIOException
+     *          if the query failed
+     */
+    public void putRow( String key, String columnFamily, ByteBuffer img ) {
+        try {
+            putRowAsync( key, columnFamily, img ).get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new TileIOException( "Interrupted while writing to cassandra db." );
+        } catch ( ExecutionException e ) {
+            throw new TileIOException( "Error while writing to cassandra db, " + e.getCause().getMessage() );
+        }
+    }
+
+    /**
+     * Write the image of a single Cassandra row without blocking the calling thread.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * @param img
+     *          image to write, must not be <code>null</code>
+     * @return future of the write, fails if the query failed
+     */
+    public ListenableFuture<ResultSet> putRowAsync( String key, String columnFamily, ByteBuffer img ) {
+        Statement putTileStatement = new SimpleStatement(
+                "INSERT INTO " + columnFamily + " (key, img) VALUES (?, ?)", key, img )
+                .setConsistencyLevel(ConsistencyLevel.ONE);
+        return session.executeAsync( putTileStatement );
+    }
+
+    /**
+     * Write the image of a single tile without blocking the calling thread, guarded by the circuit breaker.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * @param img
+     *          image to write, must not be <code>null</code>
+     * @return future of the write, fails if the query failed or the circuit breaker is open
+     */
+    public ListenableFuture<ResultSet> putTileImageAsync( String key, String columnFamily, ByteBuffer img ) {
+        if ( circuitBreaker != null && !circuitBreaker.allowRequest() ) {
+            return Futures.immediateFailedFuture(
+                    new TileIOException( "Circuit breaker open, cassandra db not written." ) );
+        }
+
+        final long start = System.nanoTime();
+        ListenableFuture<ResultSet> res = putRowAsync( key, columnFamily, img );
+        Futures.addCallback( res, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess( ResultSet result ) {
+                if ( circuitBreaker != null ) {
+                    circuitBreaker.onSuccess( start, System.nanoTime() - start );
+                }
+            }
+
+            @Override
+            public void onFailure( Throwable t ) {
+                if ( circuitBreaker == null ) {
+                    return;
+                }
+                if ( t instanceof CancellationException ) {
+                    // cancelled by the caller, says nothing about the cluster
+                    circuitBreaker.onCancelled( start );
+                } else {
+                    circuitBreaker.onFailure( start );
+                }
+            }
+        } );
+        return res;
+    }
+
+    /**
+     * Delete single Cassandra row.
+     * 
+     * @param key
+     *          Key to identify and access a Cassandra row.
+     * @param columnFamily
+     * @throws TileIOException
+     *          if the query failed
+     */
+    public void deleteRow( String key, String columnFamily ) {
+        Statement deleteStatement = new SimpleStatement(
+                "DELETE FROM " + columnFamily
+                + " WHERE key = \'" + key + "\'" )
+                .setConsistencyLevel(ConsistencyLevel.ONE);
+        try {
+            session.execute(deleteStatement);
+        } catch ( Exception e ) {
+            throw new TileIOException( "Error while deleting from cassandra db, " + e.getMessage() );
+        }
+    }
+
     public char getSeparatorChar() {
         return this.separatorChar;
     }
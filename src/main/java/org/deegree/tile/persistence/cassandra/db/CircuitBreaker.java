@@ -0,0 +1,288 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import org.slf4j.Logger;
+
+/**
+ * Circuit breaker guarding the calls to the Cassandra cluster.<br/>
+ * <br/>
+ * The outcome of the last <code>windowSize</code> calls is recorded. As soon as at least <code>minimumCalls</code>
+ * calls have been recorded and either the failure rate or the rate of slow calls reaches its threshold, the breaker
+ * opens and calls are rejected without touching the cluster. After <code>openDuration</code> milliseconds the breaker
+ * lets <code>halfOpenTrials</code> trial calls pass: if all of them succeed in time it closes again, otherwise it
+ * re-opens. Only the trial calls decide, the outcome of calls started before the breaker became half open is ignored.
+ * Calls are told apart by their start time ({@link System#nanoTime()}), which the caller passes with the outcome.
+ *
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ *
+ * @version $Revision$, $Date$
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = getLogger( CircuitBreaker.class );
+
+    /**
+     * State of a {@link CircuitBreaker}.
+     */
+    public enum State {
+        /** calls pass, outcomes are recorded */
+        CLOSED,
+        /** calls are rejected */
+        OPEN,
+        /** a limited number of trial calls pass */
+        HALF_OPEN
+    }
+
+    private static final byte SUCCESS = 0;
+
+    private static final byte FAILURE = 1;
+
+    private static final byte SLOW = 2;
+
+    private final double failureRateThreshold;
+
+    private final long slowCallThresholdNanos;
+
+    private final double slowCallRateThreshold;
+
+    private final int minimumCalls;
+
+    private final long openDurationMillis;
+
+    private final int halfOpenTrials;
+
+    // ring buffer with the outcomes of the last calls
+    private final byte[] window;
+
+    private int windowPos;
+
+    private int recordedCalls;
+
+    private int failures;
+
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    // System.nanoTime() when the breaker became half open, calls started before are no trials
+    private long halfOpenedAt;
+
+    private int trialsPermitted;
+
+    private int trialsSucceeded;
+
+    /**
+     * Creates a new {@link CircuitBreaker} instance.
+     *
+     * @param failureRateThreshold
+     *            rate of failed calls (0..1) that opens the breaker
+     * @param slowCallThresholdMillis
+     *            calls taking longer than this are counted as slow
+     * @param slowCallRateThreshold
+     *            rate of slow calls (0..1) that opens the breaker
+     * @param windowSize
+     *            number of recent calls the rates are calculated from, must be positive
+     * @param minimumCalls
+     *            number of calls that have to be recorded before the breaker may open
+     * @param openDurationMillis
+     *            time the breaker stays open before trial calls are permitted
+     * @param halfOpenTrials
+     *            number of successful trial calls needed to close the breaker again, must be positive
+     */
+    public CircuitBreaker( double failureRateThreshold, long slowCallThresholdMillis, double slowCallRateThreshold,
+                           int windowSize, int minimumCalls, long openDurationMillis, int halfOpenTrials ) {
+        if ( windowSize < 1 || halfOpenTrials < 1 ) {
+            throw new IllegalArgumentException( "Window size and number of half open trials must be positive." );
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThresholdNanos = slowCallThresholdMillis * 1000000L;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.window = new byte[windowSize];
+        this.minimumCalls = Math.min( Math.max( minimumCalls, 1 ), windowSize );
+        this.openDurationMillis = openDurationMillis;
+        this.halfOpenTrials = halfOpenTrials;
+    }
+
+    /**
+     * Checks whether a call may be issued to the cluster. Every permitted call must be followed by either
+     * {@link #onSuccess(long, long)}, {@link #onFailure(long)} or {@link #onCancelled(long)}, passing the value of
+     * {@link System#nanoTime()} taken after this method returned.
+     *
+     * @return <code>true</code> if the call is permitted, <code>false</code> if it must be rejected
+     */
+    public synchronized boolean allowRequest() {
+        if ( state == State.CLOSED ) {
+            return true;
+        }
+        if ( state == State.OPEN ) {
+            if ( System.currentTimeMillis() - openedAt < openDurationMillis ) {
+                return false;
+            }
+            LOG.info( "Circuit breaker half open, probing cassandra cluster." );
+            state = State.HALF_OPEN;
+            halfOpenedAt = System.nanoTime();
+            trialsPermitted = 0;
+            trialsSucceeded = 0;
+        }
+        if ( trialsPermitted < halfOpenTrials ) {
+            trialsPermitted++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a call that returned a result.
+     *
+     * @param startNanos
+     *            {@link System#nanoTime()} when the call was started
+     * @param latencyNanos
+     *            duration of the call in nanoseconds
+     */
+    public synchronized void onSuccess( long startNanos, long latencyNanos ) {
+        boolean slow = latencyNanos > slowCallThresholdNanos;
+        if ( state == State.HALF_OPEN ) {
+            if ( !isTrial( startNanos ) ) {
+                return;
+            }
+            if ( slow ) {
+                open();
+            } else if ( ++trialsSucceeded >= halfOpenTrials ) {
+                close();
+            }
+            return;
+        }
+        record( slow ? SLOW : SUCCESS );
+    }
+
+    /**
+     * Records a call that failed.
+     *
+     * @param startNanos
+     *            {@link System#nanoTime()} when the call was started
+     */
+    public synchronized void onFailure( long startNanos ) {
+        if ( state == State.HALF_OPEN ) {
+            if ( isTrial( startNanos ) ) {
+                open();
+            }
+            return;
+        }
+        record( FAILURE );
+    }
+
+    /**
+     * Records a call that was cancelled by the caller, it is neither counted as success nor as failure. A cancelled
+     * trial call can be replaced by another one.
+     *
+     * @param startNanos
+     *            {@link System#nanoTime()} when the call was started
+     */
+    public synchronized void onCancelled( long startNanos ) {
+        if ( state == State.HALF_OPEN && isTrial( startNanos ) ) {
+            trialsPermitted--;
+        }
+    }
+
+    /**
+     * @return the current state, never <code>null</code>
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    private boolean isTrial( long startNanos ) {
+        return startNanos - halfOpenedAt >= 0;
+    }
+
+    private void record( byte outcome ) {
+        if ( state != State.CLOSED ) {
+            // late result of a call issued before the breaker opened
+            return;
+        }
+        if ( recordedCalls == window.length ) {
+            forget( window[windowPos] );
+        } else {
+            recordedCalls++;
+        }
+        window[windowPos] = outcome;
+        windowPos = ( windowPos + 1 ) % window.length;
+        if ( outcome == FAILURE ) {
+            failures++;
+        } else if ( outcome == SLOW ) {
+            slowCalls++;
+        }
+
+        if ( recordedCalls >= minimumCalls ) {
+            double failureRate = (double) failures / recordedCalls;
+            double slowCallRate = (double) slowCalls / recordedCalls;
+            if ( failureRate >= failureRateThreshold || slowCallRate >= slowCallRateThreshold ) {
+                open();
+            }
+        }
+    }
+
+    private void forget( byte outcome ) {
+        if ( outcome == FAILURE ) {
+            failures--;
+        } else if ( outcome == SLOW ) {
+            slowCalls--;
+        }
+    }
+
+    private void open() {
+        LOG.warn( "Circuit breaker opened, cassandra cluster is failing or slow." );
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        LOG.info( "Circuit breaker closed, cassandra cluster recovered." );
+        state = State.CLOSED;
+        windowPos = 0;
+        recordedCalls = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+}
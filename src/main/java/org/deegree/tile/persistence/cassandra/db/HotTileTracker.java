@@ -0,0 +1,408 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Tracks the most requested tiles of a TileDataSet with constant memory.<br/>
+ * <br/>
+ * Every level has a count-min sketch estimating the number of requests per tile and a list of the <code>topK</code>
+ * tiles with the highest estimates. Counts are halved on every snapshot, so the list follows shifts in the load. The
+ * snapshot file lists <code>level,x,y,count</code> per line, hottest first, and can be read back with
+ * {@link #readSnapshot(File)} as input for warming up caches (see {@link CassandraConnector#warmUp(List)}).
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class HotTileTracker implements HotTileTrackerMBean, Runnable {
+
+    private static final Logger LOG = getLogger( HotTileTracker.class );
+
+    private static final int DEPTH = 4;
+
+    private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+                                         0xD6E8FEB86659FD93L };
+
+    private final int topK;
+
+    private final int width;
+
+    private final File snapshotFile;
+
+    private final ConcurrentMap<String, LevelSketch> levels = new ConcurrentHashMap<String, LevelSketch>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Creates a new {@link HotTileTracker} instance.
+     * 
+     * @param topK
+     *            number of hottest tiles kept per level, must be positive
+     * @param width
+     *            number of counters per hash function and level, more counters give better estimates, must be positive
+     * @param snapshotFile
+     *            file the hot tiles are written to by {@link #run()}, may be <code>null</code>
+     */
+    public HotTileTracker( int topK, int width, File snapshotFile ) {
+        if ( topK < 1 || width < 1 ) {
+            throw new IllegalArgumentException( "Number of hot tiles and sketch width must be positive." );
+        }
+        this.topK = topK;
+        this.width = width;
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Records a tile request.
+     * 
+     * @param levelId
+     *            identifier of the tile matrix, must not be <code>null</code>
+     * @param x
+     *            column index of the tile
+     * @param y
+     *            row index of the tile
+     */
+    public void record( String levelId, long x, long y ) {
+        requests.incrementAndGet();
+        LevelSketch level = levels.get( levelId );
+        if ( level == null ) {
+            LevelSketch newLevel = new LevelSketch();
+            level = levels.putIfAbsent( levelId, newLevel );
+            if ( level == null ) {
+                level = newLevel;
+            }
+        }
+        level.record( x, y );
+    }
+
+    /**
+     * @return file the hot tiles are written to, may be <code>null</code>
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Returns the hottest tiles.
+     * 
+     * @return hottest tiles of all levels, hottest first, never <code>null</code>
+     */
+    public List<HotTile> getTopTiles() {
+        List<HotTile> tiles = new ArrayList<HotTile>();
+        for ( Map.Entry<String, LevelSketch> level : levels.entrySet() ) {
+            level.getValue().addTopTiles( level.getKey(), tiles );
+        }
+        Collections.sort( tiles, new Comparator<HotTile>() {
+            @Override
+            public int compare( HotTile t1, HotTile t2 ) {
+                return t1.count < t2.count ? 1 : ( t1.count > t2.count ? -1 : 0 );
+            }
+        } );
+        return tiles;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public String[] getHotTiles() {
+        List<HotTile> tiles = getTopTiles();
+        String[] result = new String[tiles.size()];
+        for ( int i = 0; i < result.length; i++ ) {
+            result[i] = tiles.get( i ).toString();
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        levels.clear();
+        requests.set( 0 );
+    }
+
+    /**
+     * Writes the snapshot file (if configured) and halves all counts.
+     */
+    @Override
+    public void run() {
+        if ( snapshotFile != null ) {
+            try {
+                writeSnapshot( getTopTiles() );
+            } catch ( IOException e ) {
+                LOG.warn( "Could not write hot tile snapshot " + snapshotFile + ": " + e.getMessage() );
+            }
+        }
+        for ( LevelSketch level : levels.values() ) {
+            level.decay();
+        }
+    }
+
+    private void writeSnapshot( List<HotTile> tiles ) throws IOException {
+        File tmpFile = new File( snapshotFile.getPath() + ".tmp" );
+        PrintWriter out = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmpFile ), "UTF-8" ) );
+        try {
+            for ( HotTile tile : tiles ) {
+                out.println( tile );
+            }
+        } finally {
+            closeQuietly( out );
+        }
+        if ( out.checkError() ) {
+            throw new IOException( "Error writing " + tmpFile );
+        }
+        if ( !tmpFile.renameTo( snapshotFile ) && !( snapshotFile.delete() && tmpFile.renameTo( snapshotFile ) ) ) {
+            throw new IOException( "Could not rename " + tmpFile + " to " + snapshotFile );
+        }
+    }
+
+    /**
+     * Reads a snapshot file written by a {@link HotTileTracker}.
+     * 
+     * @param file
+     *            snapshot file, must not be <code>null</code>
+     * @return the tiles of the snapshot, hottest first, never <code>null</code>
+     * @throws IOException
+     *             if the file could not be read or is malformed
+     */
+    public static List<HotTile> readSnapshot( File file ) throws IOException {
+        List<HotTile> tiles = new ArrayList<HotTile>();
+        BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+        try {
+            String line;
+            while ( ( line = in.readLine() ) != null ) {
+                if ( line.trim().isEmpty() ) {
+                    continue;
+                }
+                // the level identifier may contain commas
+                int countStart = line.lastIndexOf( ',' );
+                int yStart = countStart > 0 ? line.lastIndexOf( ',', countStart - 1 ) : -1;
+                int xStart = yStart > 0 ? line.lastIndexOf( ',', yStart - 1 ) : -1;
+                if ( xStart < 0 ) {
+                    throw new IOException( "Malformed line in " + file + ": " + line );
+                }
+                try {
+                    tiles.add( new HotTile( line.substring( 0, xStart ),
+                                            Long.parseLong( line.substring( xStart + 1, yStart ) ),
+                                            Long.parseLong( line.substring( yStart + 1, countStart ) ),
+                                            Long.parseLong( line.substring( countStart + 1 ) ) ) );
+                } catch ( NumberFormatException e ) {
+                    throw new IOException( "Malformed line in " + file + ": " + line );
+                }
+            }
+        } finally {
+            closeQuietly( in );
+        }
+        return tiles;
+    }
+
+    /**
+     * Count-min sketch and top-k list of one level.
+     */
+    private class LevelSketch {
+
+        private final AtomicLongArray counters = new AtomicLongArray( DEPTH * width );
+
+        private final Map<Long, HotTile> top = new HashMap<Long, HotTile>();
+
+        // smallest count in a full top list, requests below it skip the lock
+        private volatile long topThreshold;
+
+        private void record( long x, long y ) {
+            long key = ( x << 32 ) | ( y & 0xFFFFFFFFL );
+            long estimate = Long.MAX_VALUE;
+            for ( int i = 0; i < DEPTH; i++ ) {
+                int index = i * width + bucket( key, i );
+                estimate = Math.min( estimate, counters.incrementAndGet( index ) );
+            }
+            if ( estimate < topThreshold ) {
+                return;
+            }
+            synchronized ( this ) {
+                HotTile tile = top.get( key );
+                if ( tile != null ) {
+                    tile.count = estimate;
+                } else if ( top.size() < topK ) {
+                    top.put( key, new HotTile( null, x, y, estimate ) );
+                } else {
+                    replaceMinimum( key, x, y, estimate );
+                }
+            }
+        }
+
+        private void replaceMinimum( long key, long x, long y, long estimate ) {
+            Long minKey = null;
+            long min = Long.MAX_VALUE;
+            for ( Map.Entry<Long, HotTile> entry : top.entrySet() ) {
+                if ( entry.getValue().count < min ) {
+                    min = entry.getValue().count;
+                    minKey = entry.getKey();
+                }
+            }
+            if ( minKey != null && estimate > min ) {
+                top.remove( minKey );
+                top.put( key, new HotTile( null, x, y, estimate ) );
+                min = estimate;
+                for ( HotTile tile : top.values() ) {
+                    min = Math.min( min, tile.count );
+                }
+            }
+            topThreshold = min;
+        }
+
+        private synchronized void addTopTiles( String levelId, List<HotTile> tiles ) {
+            for ( HotTile tile : top.values() ) {
+                tiles.add( new HotTile( levelId, tile.x, tile.y, tile.count ) );
+            }
+        }
+
+        private synchronized void decay() {
+            for ( int i = 0; i < counters.length(); i++ ) {
+                long count;
+                do {
+                    count = counters.get( i );
+                } while ( !counters.compareAndSet( i, count, count / 2 ) );
+            }
+            for ( HotTile tile : top.values() ) {
+                tile.count /= 2;
+            }
+            topThreshold /= 2;
+        }
+
+        private int bucket( long key, int i ) {
+            long h = ( key ^ SEEDS[i] ) * 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return (int) ( ( h & Long.MAX_VALUE ) % width );
+        }
+    }
+
+    /**
+     * A tile with its (estimated) number of requests.
+     */
+    public static class HotTile {
+
+        private final String levelId;
+
+        private final long x;
+
+        private final long y;
+
+        private long count;
+
+        /**
+         * Creates a new {@link HotTile} instance.
+         * 
+         * @param levelId
+         *            identifier of the tile matrix
+         * @param x
+         *            column index of the tile
+         * @param y
+         *            row index of the tile
+         * @param count
+         *            (estimated) number of requests
+         */
+        public HotTile( String levelId, long x, long y, long count ) {
+            this.levelId = levelId;
+            this.x = x;
+            this.y = y;
+            this.count = count;
+        }
+
+        /**
+         * @return identifier of the tile matrix
+         */
+        public String getLevelId() {
+            return levelId;
+        }
+
+        /**
+         * @return column index of the tile
+         */
+        public long getX() {
+            return x;
+        }
+
+        /**
+         * @return row index of the tile
+         */
+        public long getY() {
+            return y;
+        }
+
+        /**
+         * @return (estimated) number of requests
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return levelId + "," + x + "," + y + "," + count;
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Local in-memory tier in front of the Cassandra cluster.<br/>
+ * <br/>
+ * Tile images are kept in least recently used order until the configured number of bytes is exceeded. An entry younger
+ * than the time to live is served without asking Cassandra, older entries are only served while the cluster is failing
+ * (stale-while-error).
+ *
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ *
+ * @version $Revision$, $Date$
+ */
+public class LocalTileCache {
+
+    private final long maxBytes;
+
+    private final long timeToLiveMillis;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>( 1024, 0.75f, true );
+
+    private long bytes;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * Creates a new {@link LocalTileCache} instance.
+     *
+     * @param maxBytes
+     *            maximum number of image bytes kept in memory
+     * @param timeToLiveMillis
+     *            time an entry is served without asking Cassandra, <code>0</code> to serve entries only when Cassandra
+     *            fails
+     */
+    public LocalTileCache( long maxBytes, long timeToLiveMillis ) {
+        this.maxBytes = maxBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * Looks up a cached tile image.
+     *
+     * @param key
+     *            cache key, must not be <code>null</code>
+     * @return cached entry (fresh or stale) or <code>null</code> if the tile is not cached
+     */
+    public synchronized Entry get( String key ) {
+        Entry entry = entries.get( key );
+        if ( entry != null && entry.isFresh() ) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    /**
+     * Caches a tile image, evicting the least recently used entries if the cache is full.
+     *
+     * @param key
+     *            cache key, must not be <code>null</code>
+     * @param image
+     *            tile image, must not be <code>null</code>
+     */
+    public synchronized void put( String key, ByteBuffer image ) {
+        Entry entry = new Entry( image.duplicate(), System.currentTimeMillis() + timeToLiveMillis );
+        if ( entry.size() > maxBytes ) {
+            return;
+        }
+        Entry old = entries.put( key, entry );
+        if ( old != null ) {
+            bytes -= old.size();
+        }
+        bytes += entry.size();
+
+        Iterator<Entry> iter = entries.values().iterator();
+        while ( bytes > maxBytes && iter.hasNext() ) {
+            bytes -= iter.next().size();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Removes a tile image from the cache.
+     *
+     * @param key
+     *            cache key, must not be <code>null</code>
+     */
+    public synchronized void invalidate( String key ) {
+        Entry old = entries.remove( key );
+        if ( old != null ) {
+            bytes -= old.size();
+        }
+    }
+
+    /**
+     * @return number of lookups that found a fresh entry
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that found no entry or a stale one
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Cached tile image.
+     */
+    public static class Entry {
+
+        private final ByteBuffer image;
+
+        private final long expires;
+
+        private Entry( ByteBuffer image, long expires ) {
+            this.image = image;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the cached image, never <code>null</code>
+         */
+        public ByteBuffer getImage() {
+            return image.duplicate();
+        }
+
+        /**
+         * @return <code>true</code> if the entry may be served without asking Cassandra
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        private int size() {
+            return image.remaining();
+        }
+    }
+
+}
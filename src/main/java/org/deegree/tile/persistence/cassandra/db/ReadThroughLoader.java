@@ -0,0 +1,306 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.toByteArray;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.imageio.ImageIO;
+
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.persistence.TileStore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Fetches tiles missing in Cassandra from an upstream {@link TileStore}, e.g. a WMS-backed or file system tile store
+ * using the same tile matrix set.<br/>
+ * <br/>
+ * Concurrent requests for the same tile are coalesced into one upstream fetch. Upstream tiles in another format are
+ * converted to the format of the Cassandra TileDataSet. Fetches failing to get a thread or a place in the bounded queue
+ * fail with a {@link TileIOException}, so a slow upstream store can not pile up unbounded work. Fetches taking longer than the timeout fail with a
+ * {@link TimeoutException}, fetches still pending when the loader is destroyed fail with a {@link TileIOException}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class ReadThroughLoader {
+
+    private final TileStore upstream;
+
+    private final String upstreamDataSetId;
+
+    private final boolean writeBack;
+
+    private final long timeout;
+
+    private final ExecutorService executor;
+
+    private final ScheduledExecutorService timer;
+
+    private final ConcurrentMap<String, SettableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<String, SettableFuture<ByteBuffer>>();
+
+    /**
+     * Notified once per upstream fetch, not per coalesced request.
+     */
+    public interface LoadListener {
+
+        /**
+         * @param key
+         *            key identifying the tile
+         * @param image
+         *            fetched tile image, never <code>null</code>
+         */
+        void loaded( String key, ByteBuffer image );
+    }
+
+    /**
+     * Creates a new {@link ReadThroughLoader} instance.
+     * 
+     * @param upstream
+     *            tile store to fetch missing tiles from, must not be <code>null</code>
+     * @param upstreamDataSetId
+     *            identifier of the tile data set in the upstream store, must not be <code>null</code>
+     * @param threads
+     *            maximum number of concurrent upstream fetches
+     * @param queueSize
+     *            number of upstream fetches waiting for a thread
+     * @param writeBack
+     *            <code>true</code> if fetched tiles should be written to Cassandra
+     * @param timeout
+     *            milliseconds after which a fetch fails with a {@link TimeoutException}
+     */
+    public ReadThroughLoader( TileStore upstream, String upstreamDataSetId, int threads, int queueSize,
+                              boolean writeBack, long timeout ) {
+        this.upstream = upstream;
+        this.upstreamDataSetId = upstreamDataSetId;
+        this.writeBack = writeBack;
+        this.timeout = timeout;
+        this.executor = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<Runnable>( queueSize ),
+                                                new DaemonThreadFactory( "cassandra-tilestore-readthrough" ),
+                                                new ThreadPoolExecutor.AbortPolicy() );
+        this.timer = Executors.newSingleThreadScheduledExecutor( new DaemonThreadFactory(
+                                                                                          "cassandra-tilestore-readthrough-timeout" ) );
+    }
+
+    /**
+     * @return <code>true</code> if fetched tiles should be written to Cassandra
+     */
+    public boolean isWriteBack() {
+        return writeBack;
+    }
+
+    /**
+     * @return milliseconds after which a fetch fails with a {@link TimeoutException}
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Fetches a tile from the upstream store, joins a fetch of the same tile already in progress.
+     * 
+     * @param key
+     *            key identifying the tile, must not be <code>null</code>
+     * @param matrixId
+     *            identifier of the tile matrix, must not be <code>null</code>
+     * @param x
+     *            column index of the tile
+     * @param y
+     *            row index of the tile
+     * @param format
+     *            image format the tile is returned in, must not be <code>null</code>
+     * @param listener
+     *            notified if this call starts a new fetch and the upstream store has the tile, must not be
+     *            <code>null</code>
+     * @return future of the tile image, the image is <code>null</code> if the upstream store has no such tile, fails
+     *         with a {@link TimeoutException} if the upstream store does not deliver the tile in time
+     */
+    public ListenableFuture<ByteBuffer> load( final String key, final String matrixId, final long x, final long y,
+                                              final String format, final LoadListener listener ) {
+        final SettableFuture<ByteBuffer> fetch = SettableFuture.create();
+        SettableFuture<ByteBuffer> pending = inFlight.putIfAbsent( key, fetch );
+        if ( pending != null ) {
+            return pending;
+        }
+        try {
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer image;
+                    try {
+                        image = fetch( matrixId, x, y, format );
+                        if ( image != null ) {
+                            listener.loaded( key, image.duplicate() );
+                        }
+                    } catch ( Throwable t ) {
+                        inFlight.remove( key, fetch );
+                        fetch.setException( t );
+                        return;
+                    }
+                    // later requests have to start a new fetch as soon as this one is done
+                    inFlight.remove( key, fetch );
+                    fetch.set( image );
+                }
+            } );
+            expireAfterTimeout( key, fetch );
+        } catch ( RejectedExecutionException e ) {
+            inFlight.remove( key, fetch );
+            if ( executor.isShutdown() ) {
+                fetch.setException( new TileIOException( "Read-through loader is destroyed, tile " + key
+                                                          + " not fetched." ) );
+            } else {
+                fetch.setException( new TileIOException( "Too many pending upstream fetches, tile " + key
+                                                          + " not fetched." ) );
+            }
+        }
+        return fetch;
+    }
+
+    private void expireAfterTimeout( final String key, final SettableFuture<ByteBuffer> fetch ) {
+        final ScheduledFuture<?> expiry = timer.schedule( new Runnable() {
+            @Override
+            public void run() {
+                // the fetch keeps running, but waiting requests and new requests do not depend on it any longer
+                if ( inFlight.remove( key, fetch ) ) {
+                    fetch.setException( new TimeoutException( "Upstream store did not deliver tile " + key
+                                                              + " within " + timeout + " ms." ) );
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS );
+        fetch.addListener( new Runnable() {
+            @Override
+            public void run() {
+                expiry.cancel( false );
+            }
+        }, MoreExecutors.sameThreadExecutor() );
+    }
+
+    /**
+     * Stops fetching tiles, fetches still pending fail.
+     */
+    public void destroy() {
+        timer.shutdownNow();
+        executor.shutdown();
+        // fail the pending fetches before interrupting them, so they do not fail with an InterruptedException
+        for ( SettableFuture<ByteBuffer> pending : inFlight.values() ) {
+            pending.setException( new TileIOException( "Read-through loader destroyed." ) );
+        }
+        inFlight.clear();
+        executor.shutdownNow();
+    }
+
+    private ByteBuffer fetch( String matrixId, long x, long y, String format ) throws IOException {
+        Tile tile = upstream.getTile( upstreamDataSetId, matrixId, x, y );
+        if ( tile == null ) {
+            return null;
+        }
+        TileDataSet upstreamDataSet = upstream.getTileDataSet( upstreamDataSetId );
+        if ( upstreamDataSet != null && format.equals( upstreamDataSet.getNativeImageFormat() ) ) {
+            InputStream in = tile.getAsStream();
+            try {
+                return ByteBuffer.wrap( toByteArray( in ) );
+            } finally {
+                closeQuietly( in );
+            }
+        }
+        BufferedImage image = tile.getAsImage();
+        String formatName = format.replaceAll( "image/", "" );
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ( !ImageIO.write( image, formatName, out ) ) {
+            // e.g. the JPEG writer does not accept images with an alpha channel
+            if ( !image.getColorModel().hasAlpha() || !ImageIO.write( removeAlpha( image ), formatName, out ) ) {
+                throw new TileIOException( "No image writer for " + format );
+            }
+        }
+        return ByteBuffer.wrap( out.toByteArray() );
+    }
+
+    private static BufferedImage removeAlpha( BufferedImage image ) {
+        BufferedImage opaque = new BufferedImage( image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB );
+        Graphics2D g = opaque.createGraphics();
+        try {
+            g.drawImage( image, 0, 0, null );
+        } finally {
+            g.dispose();
+        }
+        return opaque;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private DaemonThreadFactory( String name ) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread( Runnable r ) {
+            Thread thread = new Thread( r, name );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+
+}
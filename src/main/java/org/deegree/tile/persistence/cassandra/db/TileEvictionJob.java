@@ -0,0 +1,337 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deegree.tile.TileDataLevel;
+import org.slf4j.Logger;
+
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Deletes the least recently used tiles of a column family.<br/>
+ * <br/>
+ * The last access of a tile is its <code>tileTimestamp</code> (written on every read) or, for tiles never read, the
+ * write time of the image. Tiles not accessed within the horizon are deleted. If a maximum number of tiles is
+ * configured, a first scan builds a histogram of the last accesses to find the oldest tiles exceeding the budget, which
+ * are deleted as well. Tiles of the coarsest <code>protectedLevels</code> levels are never deleted. Rows left without
+ * image are always deleted. Tiles are deleted through the {@link CassandraConnector}, which drops them from the local
+ * cache as well.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileEvictionJob implements Runnable {
+
+    private static final Logger LOG = getLogger( TileEvictionJob.class );
+
+    private static final String COLUMNS = "key, tileTimestamp, WRITETIME(img)";
+
+    // resolution of the last access histogram
+    private static final long BUCKET_MILLIS = 60 * 60 * 1000;
+
+    private static final int FETCH_SIZE = 1000;
+
+    private final CassandraConnector caConnector;
+
+    private final long horizonMillis;
+
+    private final long maxTiles;
+
+    private final int protectedLevels;
+
+    private final int threads;
+
+    private final double maxRowsPerSecond;
+
+    private final double maxDeletesPerSecond;
+
+    /**
+     * Creates a new {@link TileEvictionJob} instance.
+     * 
+     * @param caConnector
+     *            connector of the column family to evict tiles from, must not be <code>null</code>
+     * @param horizonMillis
+     *            tiles not accessed within this time are deleted, <code>-1</code> for no horizon
+     * @param maxTiles
+     *            maximum number of tiles kept, <code>-1</code> for no budget
+     * @param protectedLevels
+     *            number of coarsest levels never evicted
+     * @param threads
+     *            number of scanning threads
+     * @param maxRowsPerSecond
+     *            maximum number of rows scanned per second
+     * @param maxDeletesPerSecond
+     *            maximum number of tiles deleted per second
+     */
+    public TileEvictionJob( CassandraConnector caConnector, long horizonMillis, long maxTiles, int protectedLevels,
+                            int threads, double maxRowsPerSecond, double maxDeletesPerSecond ) {
+        this.caConnector = caConnector;
+        this.horizonMillis = horizonMillis;
+        this.maxTiles = maxTiles;
+        this.protectedLevels = protectedLevels;
+        this.threads = threads;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+    }
+
+    @Override
+    public void run() {
+        String columnFamily = caConnector.getColumnFamily();
+        try {
+            long start = System.currentTimeMillis();
+            long cutoff = horizonMillis < 0 ? Long.MIN_VALUE : start - horizonMillis;
+            Overflow overflow = null;
+            if ( maxTiles >= 0 ) {
+                overflow = getOverflow();
+                if ( overflow != null ) {
+                    cutoff = Math.max( cutoff, overflow.bucketStart );
+                }
+            }
+            if ( cutoff == Long.MIN_VALUE ) {
+                LOG.debug( "No tiles of {} to evict.", columnFamily );
+                return;
+            }
+            long deleted = evict( cutoff, overflow );
+            LOG.info( "Evicted {} tiles of {} in {} ms.", deleted, columnFamily, System.currentTimeMillis() - start );
+        } catch ( InterruptedException e ) {
+            LOG.info( "Eviction of {} interrupted.", columnFamily );
+            Thread.currentThread().interrupt();
+        } catch ( Exception e ) {
+            LOG.error( "Eviction of " + columnFamily + " failed: " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Finds the hour bucket of last accesses in which the budget is exceeded: all older tiles have to be deleted, plus
+     * the least recently accessed tiles of the bucket exceeding the budget.
+     * 
+     * @return <code>null</code> if the tiles fit into the budget
+     */
+    private Overflow getOverflow() throws InterruptedException {
+        final ConcurrentMap<Long, AtomicLong> histogram = new ConcurrentHashMap<Long, AtomicLong>();
+        final AtomicLong protectedTiles = new AtomicLong();
+        newScanner().scan( new TokenRangeScanner.RowHandler() {
+            @Override
+            public void handle( Row row ) {
+                if ( isZombie( row ) ) {
+                    return;
+                }
+                if ( isProtected( getTileIndex( row ) ) ) {
+                    protectedTiles.incrementAndGet();
+                    return;
+                }
+                Long bucket = getBucket( getLastAccess( row ) );
+                AtomicLong count = histogram.get( bucket );
+                if ( count == null ) {
+                    AtomicLong newCount = new AtomicLong();
+                    count = histogram.putIfAbsent( bucket, newCount );
+                    if ( count == null ) {
+                        count = newCount;
+                    }
+                }
+                count.incrementAndGet();
+            }
+        } );
+
+        long budget = Math.max( 0, maxTiles - protectedTiles.get() );
+        long kept = 0;
+        for ( Map.Entry<Long, AtomicLong> bucket : new TreeMap<Long, AtomicLong>( histogram ).descendingMap().entrySet() ) {
+            kept += bucket.getValue().get();
+            if ( kept > budget ) {
+                return new Overflow( bucket.getKey(), kept - budget );
+            }
+        }
+        return null;
+    }
+
+    private long evict( final long cutoff, final Overflow overflow ) throws InterruptedException {
+        final RateLimiter deleteLimiter = RateLimiter.create( maxDeletesPerSecond );
+        final AtomicLong deleted = new AtomicLong();
+        newScanner().scan( new TokenRangeScanner.RowHandler() {
+            @Override
+            public void handle( Row row ) {
+                long[] index = getTileIndex( row );
+                if ( index == null ) {
+                    return;
+                }
+                boolean zombie = isZombie( row );
+                if ( !zombie && isProtected( index ) ) {
+                    return;
+                }
+                long lastAccess = zombie ? Long.MIN_VALUE : getLastAccess( row );
+                boolean inOverflowBucket = overflow != null && getBucket( lastAccess ) == overflow.bucket;
+                if ( !zombie && lastAccess >= cutoff ) {
+                    if ( inOverflowBucket ) {
+                        overflow.offer( lastAccess, index );
+                    }
+                    return;
+                }
+                if ( inOverflowBucket ) {
+                    // deleted by the horizon, leaves one tile less to trim
+                    overflow.deleted();
+                }
+                deleteLimiter.acquire();
+                delete( index );
+                deleted.incrementAndGet();
+            }
+        } );
+        if ( overflow != null ) {
+            for ( long[] index : overflow.getOldest() ) {
+                deleteLimiter.acquire();
+                delete( index );
+                deleted.incrementAndGet();
+            }
+        }
+        return deleted.get();
+    }
+
+    private void delete( long[] index ) {
+        TileDataLevel level = caConnector.getTileDataSet().getTileDataLevels().get( (int) index[0] );
+        caConnector.remove( level.getMetadata().getIdentifier(), index[1], index[2] );
+    }
+
+    private TokenRangeScanner newScanner() {
+        return new TokenRangeScanner( caConnector.getCassandraDB(), caConnector.getColumnFamily(), COLUMNS, threads,
+                                      FETCH_SIZE, RateLimiter.create( maxRowsPerSecond ) );
+    }
+
+    /**
+     * @return level index, column index and row index of the tile, <code>null</code> if the row is not a tile of the
+     *         TileDataSet
+     */
+    private long[] getTileIndex( Row row ) {
+        try {
+            return caConnector.parseRowKey( row.getString( 0 ) );
+        } catch ( IllegalArgumentException e ) {
+            // not a tile written by this module
+            return null;
+        }
+    }
+
+    private boolean isProtected( long[] index ) {
+        return index == null || index[0] < protectedLevels;
+    }
+
+    /**
+     * Rows without image, e.g. recreated by a timestamp update racing with a delete, are invisible to readers and
+     * neither count against the budget nor are they protected.
+     */
+    private static boolean isZombie( Row row ) {
+        return row.isNull( 2 );
+    }
+
+    private static long getLastAccess( Row row ) {
+        if ( !row.isNull( 1 ) ) {
+            return row.getLong( 1 );
+        }
+        return row.getLong( 2 ) / 1000;
+    }
+
+    private static long getBucket( long lastAccess ) {
+        return lastAccess / BUCKET_MILLIS;
+    }
+
+    /**
+     * Bucket of last accesses exceeding the budget, collects the least recently accessed tiles of the bucket while
+     * scanning. Holds at most as many tiles as exceed the budget.
+     */
+    private static class Overflow {
+
+        private final long bucket;
+
+        private final long bucketStart;
+
+        private long tiles;
+
+        // least recently accessed tiles of the bucket, most recent first
+        private final PriorityQueue<long[]> oldest = new PriorityQueue<long[]>( 11, new Comparator<long[]>() {
+            @Override
+            public int compare( long[] t1, long[] t2 ) {
+                return t1[0] < t2[0] ? 1 : ( t1[0] > t2[0] ? -1 : 0 );
+            }
+        } );
+
+        private Overflow( long bucket, long tiles ) {
+            this.bucket = bucket;
+            this.bucketStart = bucket * BUCKET_MILLIS;
+            this.tiles = tiles;
+        }
+
+        private synchronized void offer( long lastAccess, long[] index ) {
+            if ( tiles <= 0 ) {
+                return;
+            }
+            if ( oldest.size() < tiles ) {
+                oldest.add( new long[] { lastAccess, index[0], index[1], index[2] } );
+            } else if ( lastAccess < oldest.peek()[0] ) {
+                oldest.poll();
+                oldest.add( new long[] { lastAccess, index[0], index[1], index[2] } );
+            }
+        }
+
+        private synchronized void deleted() {
+            tiles--;
+            if ( oldest.size() > tiles && !oldest.isEmpty() ) {
+                oldest.poll();
+            }
+        }
+
+        private synchronized List<long[]> getOldest() {
+            List<long[]> indexes = new ArrayList<long[]>( oldest.size() );
+            for ( long[] tile : oldest ) {
+                indexes.add( new long[] { tile[1], tile[2], tile[3] } );
+            }
+            return indexes;
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deegree.tile.TileIOException;
+
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Scans a whole column family in parallel. The token ring is split into segments which are scanned by a fixed number
+ * of threads, each segment is fetched page by page.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TokenRangeScanner {
+
+    // segments per thread, smaller segments even out the load between the threads
+    private static final int SEGMENTS_PER_THREAD = 8;
+
+    private final CassandraDB cassandraDB;
+
+    private final String columnFamily;
+
+    private final String columns;
+
+    private final int threads;
+
+    private final int fetchSize;
+
+    private final RateLimiter rateLimiter;
+
+    /**
+     * Receives the scanned rows, called concurrently by the scanning threads.
+     */
+    public interface RowHandler {
+
+        /**
+         * @param row
+         *            scanned row, never <code>null</code>
+         */
+        void handle( Row row );
+    }
+
+    /**
+     * Creates a new {@link TokenRangeScanner} instance.
+     * 
+     * @param cassandraDB
+     *            database to scan, must not be <code>null</code>
+     * @param columnFamily
+     *            column family to scan, must not be <code>null</code>
+     * @param columns
+     *            selected columns, must not be <code>null</code>
+     * @param threads
+     *            number of scanning threads
+     * @param fetchSize
+     *            number of rows per page
+     * @param rateLimiter
+     *            limits the number of scanned rows per second, may be <code>null</code> (no limit)
+     */
+    public TokenRangeScanner( CassandraDB cassandraDB, String columnFamily, String columns, int threads,
+                              int fetchSize, RateLimiter rateLimiter ) {
+        this.cassandraDB = cassandraDB;
+        this.columnFamily = columnFamily;
+        this.columns = columns;
+        this.threads = threads;
+        this.fetchSize = fetchSize;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Scans all rows of the column family, blocks until all segments are scanned.
+     * 
+     * @param handler
+     *            receives the scanned rows, must not be <code>null</code>
+     * @throws TileIOException
+     *             if scanning failed
+     * @throws InterruptedException
+     *             if the calling thread was interrupted, the scan is cancelled
+     */
+    public void scan( final RowHandler handler ) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+            List<Future<?>> segments = new ArrayList<Future<?>>();
+            for ( final BigInteger[] segment : splitTokenRing( threads * SEGMENTS_PER_THREAD ) ) {
+                segments.add( executor.submit( new Runnable() {
+                    @Override
+                    public void run() {
+                        scanSegment( segment[0], segment[1], handler );
+                    }
+                } ) );
+            }
+            for ( Future<?> segment : segments ) {
+                try {
+                    segment.get();
+                } catch ( ExecutionException e ) {
+                    throw new TileIOException( "Error while scanning " + columnFamily + ", " + e.getCause().getMessage(),
+                                               e.getCause() );
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void scanSegment( BigInteger firstToken, BigInteger lastToken, RowHandler handler ) {
+        for ( Row row : cassandraDB.scanTokenRange( columnFamily, columns, firstToken, lastToken, fetchSize ) ) {
+            if ( Thread.currentThread().isInterrupted() ) {
+                return;
+            }
+            if ( rateLimiter != null ) {
+                rateLimiter.acquire();
+            }
+            handler.handle( row );
+        }
+    }
+
+    private List<BigInteger[]> splitTokenRing( int numSegments ) {
+        BigInteger[] ring = cassandraDB.getTokenRing();
+        BigInteger size = ring[1].subtract( ring[0] );
+        List<BigInteger[]> segments = new ArrayList<BigInteger[]>( numSegments );
+        BigInteger first = ring[0];
+        for ( int i = 1; i <= numSegments; i++ ) {
+            BigInteger last = ring[1];
+            if ( i < numSegments ) {
+                last = ring[0].add( size.multiply( BigInteger.valueOf( i ) ).divide( BigInteger.valueOf( numSegments ) ) );
+            }
+            segments.add( new BigInteger[] { first, last } );
+            first = last.add( BigInteger.ONE );
+        }
+        return segments;
+    }
+
+}
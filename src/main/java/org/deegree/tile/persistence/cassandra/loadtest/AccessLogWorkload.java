@@ -0,0 +1,190 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.GeometryFactory;
+import org.slf4j.Logger;
+
+/**
+ * {@link Workload} replaying the tile requests of a web server access log. Recognized are
+ * <ul>
+ * <li>WMTS KVP GetTile requests (<code>TILEMATRIX</code>, <code>TILEROW</code> and <code>TILECOL</code>),</li>
+ * <li>WMTS RESTful requests ending with <code>/{TileMatrix}/{TileRow}/{TileCol}.png</code> (or .jpg),</li>
+ * <li>WMS GetMap requests, replayed as request of all tiles intersecting <code>BBOX</code> at the resolution given by
+ * <code>WIDTH</code>.</li>
+ * </ul>
+ * Other lines are skipped. The requests are replayed in the order of the log, starting over at the beginning until the
+ * configured number of requests is reached.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class AccessLogWorkload implements Workload {
+
+    private static final Logger LOG = getLogger( AccessLogWorkload.class );
+
+    private static final Pattern KVP = Pattern.compile( "[?&]([A-Za-z]+)=([^&\\s\"]*)" );
+
+    private static final Pattern REST = Pattern.compile( "/([^/\\s?]+)/(\\d+)/(\\d+)\\.(?:png|jpe?g)[\\s?\"]" );
+
+    private final List<TileRequest> entries;
+
+    private final long requests;
+
+    private final AtomicLong issued = new AtomicLong();
+
+    /**
+     * Creates a new {@link AccessLogWorkload} instance.
+     * 
+     * @param log
+     *            access log to replay, must not be <code>null</code>
+     * @param crs
+     *            coordinate system of the WMS bounding boxes, must not be <code>null</code>
+     * @param requests
+     *            number of requests, <code>-1</code> to replay the log once
+     * @throws IOException
+     *             if the log could not be read or contains no tile requests
+     */
+    public AccessLogWorkload( File log, ICRS crs, long requests ) throws IOException {
+        this.entries = parse( log, crs );
+        if ( entries.isEmpty() ) {
+            throw new IOException( "No tile requests found in " + log + "." );
+        }
+        this.requests = requests < 0 ? entries.size() : requests;
+    }
+
+    /**
+     * @return number of requests that will be issued
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    @Override
+    public TileRequest next() {
+        long i = issued.getAndIncrement();
+        if ( i >= requests ) {
+            return null;
+        }
+        return entries.get( (int) ( i % entries.size() ) );
+    }
+
+    private static List<TileRequest> parse( File log, ICRS crs ) throws IOException {
+        List<TileRequest> entries = new ArrayList<TileRequest>();
+        GeometryFactory fac = new GeometryFactory();
+        int skipped = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader( new InputStreamReader( new FileInputStream( log ), "UTF-8" ) );
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                TileRequest request = null;
+                try {
+                    request = parseLine( line, crs, fac );
+                } catch ( NumberFormatException e ) {
+                    LOG.debug( "Invalid request in line '{}': {}", line, e.getMessage() );
+                }
+                if ( request != null ) {
+                    entries.add( request );
+                } else {
+                    skipped++;
+                }
+            }
+        } finally {
+            closeQuietly( reader );
+        }
+        LOG.info( "Read {} tile requests from {}, skipped {} lines.",
+                  new Object[] { entries.size(), log, skipped } );
+        return entries;
+    }
+
+    private static TileRequest parseLine( String line, ICRS crs, GeometryFactory fac ) throws IOException {
+        Map<String, String> kvp = new HashMap<String, String>();
+        Matcher m = KVP.matcher( line );
+        while ( m.find() ) {
+            kvp.put( m.group( 1 ).toUpperCase(), URLDecoder.decode( m.group( 2 ), "UTF-8" ) );
+        }
+        String request = kvp.get( "REQUEST" );
+        if ( "GetTile".equalsIgnoreCase( request ) && kvp.containsKey( "TILEMATRIX" ) ) {
+            return TileRequest.tile( kvp.get( "TILEMATRIX" ), Long.parseLong( kvp.get( "TILECOL" ) ),
+                                     Long.parseLong( kvp.get( "TILEROW" ) ) );
+        }
+        if ( "GetMap".equalsIgnoreCase( request ) && kvp.containsKey( "BBOX" ) ) {
+            String[] bbox = kvp.get( "BBOX" ).split( "," );
+            if ( bbox.length < 4 ) {
+                return null;
+            }
+            double minx = Double.parseDouble( bbox[0] );
+            double miny = Double.parseDouble( bbox[1] );
+            double maxx = Double.parseDouble( bbox[2] );
+            double maxy = Double.parseDouble( bbox[3] );
+            double resolution = ( maxx - minx ) / Integer.parseInt( kvp.get( "WIDTH" ) );
+            return TileRequest.area( fac.createEnvelope( minx, miny, maxx, maxy, crs ), resolution );
+        }
+        if ( request != null ) {
+            return null;
+        }
+        m = REST.matcher( line );
+        if ( m.find() ) {
+            return TileRequest.tile( URLDecoder.decode( m.group( 1 ), "UTF-8" ), Long.parseLong( m.group( 3 ) ),
+                                     Long.parseLong( m.group( 2 ) ) );
+        }
+        return null;
+    }
+
+}
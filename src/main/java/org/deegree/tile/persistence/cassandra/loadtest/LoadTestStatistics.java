@@ -0,0 +1,168 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of a {@link TileStoreLoadTest} run: request and tile counts and the latency of every request.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class LoadTestStatistics {
+
+    private final long[] latencies;
+
+    private final AtomicInteger recorded = new AtomicInteger();
+
+    private final AtomicLong failedRequests = new AtomicLong();
+
+    private final AtomicLong tiles = new AtomicLong();
+
+    private final AtomicLong unavailableTiles = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private long[] sorted;
+
+    /**
+     * Creates a new {@link LoadTestStatistics} instance.
+     * 
+     * @param maxRequests
+     *            maximum number of requests that will be recorded
+     */
+    public LoadTestStatistics( int maxRequests ) {
+        this.latencies = new long[maxRequests];
+    }
+
+    /**
+     * Records a finished request.
+     * 
+     * @param latencyNanos
+     *            time from issuing the request until the last tile image was read
+     * @param failed
+     *            <code>true</code> if the request failed
+     */
+    public void record( long latencyNanos, boolean failed ) {
+        int i = recorded.getAndIncrement();
+        if ( i < latencies.length ) {
+            latencies[i] = latencyNanos;
+        }
+        if ( failed ) {
+            failedRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts a delivered tile.
+     * 
+     * @param size
+     *            size of the tile image in bytes
+     */
+    public void addTile( int size ) {
+        tiles.incrementAndGet();
+        bytes.addAndGet( size );
+    }
+
+    /**
+     * Counts a tile that is missing or could not be fetched.
+     */
+    public void addUnavailableTile() {
+        unavailableTiles.incrementAndGet();
+    }
+
+    /**
+     * @return number of recorded requests
+     */
+    public int getRequests() {
+        return Math.min( recorded.get(), latencies.length );
+    }
+
+    /**
+     * @return number of failed requests
+     */
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    /**
+     * @return number of delivered tiles
+     */
+    public long getTiles() {
+        return tiles.get();
+    }
+
+    /**
+     * @return number of tiles that were missing or could not be fetched
+     */
+    public long getUnavailableTiles() {
+        return unavailableTiles.get();
+    }
+
+    /**
+     * @return number of delivered image bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Returns a latency percentile, must only be called after all requests have been recorded.
+     * 
+     * @param percentile
+     *            percentile (0..100)
+     * @return latency in nanoseconds, <code>0</code> if no request was recorded
+     */
+    public synchronized long getLatencyPercentile( double percentile ) {
+        if ( sorted == null ) {
+            sorted = Arrays.copyOf( latencies, getRequests() );
+            Arrays.sort( sorted );
+        }
+        if ( sorted.length == 0 ) {
+            return 0;
+        }
+        int rank = (int) Math.ceil( percentile / 100 * sorted.length ) - 1;
+        return sorted[Math.min( Math.max( rank, 0 ), sorted.length - 1 )];
+    }
+
+}
@@ -0,0 +1,346 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.persistence.cassandra.db.CassandraDB;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * In-process stand-in for the Cassandra cluster used by the {@link TileStoreLoadTest}.<br/>
+ * <br/>
+ * Every tile exists and carries the same image, unless it falls into the configured share of missing tiles, has been
+ * deleted or has been written. Each call is delayed according to a {@link LatencyDistribution} and fails according to a
+ * {@link FailureDistribution}. Asynchronous calls are completed by a scheduler, so they do not block the calling
+ * thread while waiting. All calls reaching the stand-in are counted.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class SimulatedCassandraDB extends CassandraDB {
+
+    /**
+     * Distribution of the latency of the calls.
+     */
+    public interface LatencyDistribution {
+
+        /**
+         * @param random
+         *            random source of the calling thread, never <code>null</code>
+         * @return latency of the next call in nanoseconds
+         */
+        long nextLatencyNanos( Random random );
+    }
+
+    /**
+     * Distribution of the failing calls.
+     */
+    public interface FailureDistribution {
+
+        /**
+         * @param random
+         *            random source of the calling thread, never <code>null</code>
+         * @param elapsedMillis
+         *            milliseconds since the stand-in has been created
+         * @return <code>true</code> if the next call fails
+         */
+        boolean nextFails( Random random, long elapsedMillis );
+    }
+
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final ByteBuffer image;
+
+    private final double missingRate;
+
+    private final LatencyDistribution latency;
+
+    private final FailureDistribution failures;
+
+    private final long created = System.currentTimeMillis();
+
+    private final Map<String, ByteBuffer> written = new ConcurrentHashMap<String, ByteBuffer>();
+
+    private final Set<String> deleted = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong reads = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong deletes = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Creates a new {@link SimulatedCassandraDB} instance.
+     * 
+     * @param image
+     *            image returned for every existing tile, must not be <code>null</code>
+     * @param missingRate
+     *            share of tiles (0..1) that do not exist, the same keys are missing on every call
+     * @param latency
+     *            latency of the calls, must not be <code>null</code>
+     * @param failures
+     *            failing calls, must not be <code>null</code>
+     * @param schedulerThreads
+     *            number of threads completing the asynchronous calls, must be positive
+     */
+    public SimulatedCassandraDB( ByteBuffer image, double missingRate, LatencyDistribution latency,
+                                 FailureDistribution failures, int schedulerThreads ) {
+        this.image = image;
+        this.missingRate = missingRate;
+        this.latency = latency;
+        this.failures = failures;
+        this.scheduler = Executors.newScheduledThreadPool( schedulerThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable r ) {
+                Thread thread = new Thread( r, "simulated-cassandra" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+    /**
+     * @param millis
+     *            latency of every call in milliseconds
+     * @return latency distribution, never <code>null</code>
+     */
+    public static LatencyDistribution constantLatency( double millis ) {
+        final long nanos = (long) ( millis * 1000000 );
+        return new LatencyDistribution() {
+            @Override
+            public long nextLatencyNanos( Random random ) {
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * Log-normal latencies, as typically observed for database calls: most calls are close to the median, a few take
+     * a multiple of it.
+     * 
+     * @param medianMillis
+     *            median latency in milliseconds
+     * @param sigma
+     *            standard deviation of the logarithm of the latency, <code>0</code> for a constant latency
+     * @return latency distribution, never <code>null</code>
+     */
+    public static LatencyDistribution logNormalLatency( final double medianMillis, final double sigma ) {
+        return new LatencyDistribution() {
+            @Override
+            public long nextLatencyNanos( Random random ) {
+                return (long) ( medianMillis * Math.exp( sigma * random.nextGaussian() ) * 1000000 );
+            }
+        };
+    }
+
+    /**
+     * Independently failing calls, interrupted by periodic outages during which every call fails.
+     * 
+     * @param rate
+     *            share of calls (0..1) failing outside of outages
+     * @param outagePeriodMillis
+     *            milliseconds from the start of one outage to the start of the next one, <code>0</code> for no outages
+     * @param outageMillis
+     *            duration of an outage in milliseconds
+     * @return failure distribution, never <code>null</code>
+     */
+    public static FailureDistribution failures( final double rate, final long outagePeriodMillis,
+                                                final long outageMillis ) {
+        return new FailureDistribution() {
+            @Override
+            public boolean nextFails( Random random, long elapsedMillis ) {
+                if ( outagePeriodMillis > 0
+                     && elapsedMillis % outagePeriodMillis >= outagePeriodMillis - outageMillis ) {
+                    return true;
+                }
+                return rate > 0 && random.nextDouble() < rate;
+            }
+        };
+    }
+
+    @Override
+    protected ByteBuffer fetchTileImage( String key, String columnFamily ) {
+        reads.incrementAndGet();
+        simulateCall( "read" );
+        return lookup( key, columnFamily );
+    }
+
+    @Override
+    protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+        reads.incrementAndGet();
+        return schedule( "read", lookup( key, columnFamily ), null );
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> putRowAsync( String key, String columnFamily, ByteBuffer img ) {
+        writes.incrementAndGet();
+        final String tileKey = columnFamily + getSeparatorChar() + key;
+        final ByteBuffer copy = img.duplicate();
+        return schedule( "write", (ResultSet) null, new Runnable() {
+            @Override
+            public void run() {
+                written.put( tileKey, copy );
+                deleted.remove( tileKey );
+            }
+        } );
+    }
+
+    @Override
+    public void deleteRow( String key, String columnFamily ) {
+        deletes.incrementAndGet();
+        simulateCall( "delete" );
+        String tileKey = columnFamily + getSeparatorChar() + key;
+        written.remove( tileKey );
+        deleted.add( tileKey );
+    }
+
+    /**
+     * Stops the scheduler completing the asynchronous calls.
+     */
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return number of read calls that reached the stand-in
+     */
+    public long getReads() {
+        return reads.get();
+    }
+
+    /**
+     * @return number of write calls that reached the stand-in
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return number of delete calls that reached the stand-in
+     */
+    public long getDeletes() {
+        return deletes.get();
+    }
+
+    /**
+     * @return number of calls that failed
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private ByteBuffer lookup( String key, String columnFamily ) {
+        String tileKey = columnFamily + getSeparatorChar() + key;
+        ByteBuffer img = written.get( tileKey );
+        if ( img != null ) {
+            return img.duplicate();
+        }
+        if ( deleted.contains( tileKey ) || isMissing( tileKey ) ) {
+            return null;
+        }
+        return image.duplicate();
+    }
+
+    private boolean isMissing( String tileKey ) {
+        // spread the hash codes of the similar keys before deriving the share from them
+        int hash = tileKey.hashCode() * 0x9E3779B9;
+        return ( hash >>> 8 ) < missingRate * ( 1 << 24 );
+    }
+
+    private void simulateCall( String operation ) {
+        Random random = RANDOM.get();
+        try {
+            TimeUnit.NANOSECONDS.sleep( latency.nextLatencyNanos( random ) );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new TileIOException( "Interrupted during simulated " + operation + "." );
+        }
+        if ( failures.nextFails( random, System.currentTimeMillis() - created ) ) {
+            errors.incrementAndGet();
+            throw new TileIOException( "Simulated " + operation + " failure." );
+        }
+    }
+
+    private <T> ListenableFuture<T> schedule( final String operation, final T result, final Runnable onSuccess ) {
+        Random random = RANDOM.get();
+        final boolean fails = failures.nextFails( random, System.currentTimeMillis() - created );
+        final SettableFuture<T> future = SettableFuture.create();
+        scheduler.schedule( new Runnable() {
+            @Override
+            public void run() {
+                if ( fails ) {
+                    errors.incrementAndGet();
+                    future.setException( new TileIOException( "Simulated " + operation + " failure." ) );
+                } else {
+                    if ( onSuccess != null ) {
+                        onSuccess.run();
+                    }
+                    future.set( result );
+                }
+            }
+        }, latency.nextLatencyNanos( random ), TimeUnit.NANOSECONDS );
+        return future;
+    }
+
+}
@@ -0,0 +1,164 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.toByteArray;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import org.deegree.geometry.Envelope;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+
+/**
+ * Request issued by the {@link TileStoreLoadTest}: either a single tile (as requested by WMTS clients) or all tiles
+ * intersecting an envelope (as requested by WMS clients).
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileRequest {
+
+    private final String matrixId;
+
+    private final long x;
+
+    private final long y;
+
+    private final Envelope envelope;
+
+    private final double resolution;
+
+    private TileRequest( String matrixId, long x, long y, Envelope envelope, double resolution ) {
+        this.matrixId = matrixId;
+        this.x = x;
+        this.y = y;
+        this.envelope = envelope;
+        this.resolution = resolution;
+    }
+
+    /**
+     * @param matrixId
+     *            identifier of the tile matrix, must not be <code>null</code>
+     * @param x
+     *            column index of the tile
+     * @param y
+     *            row index of the tile
+     * @return request of a single tile, never <code>null</code>
+     */
+    public static TileRequest tile( String matrixId, long x, long y ) {
+        return new TileRequest( matrixId, x, y, null, 0 );
+    }
+
+    /**
+     * @param envelope
+     *            requested envelope, must not be <code>null</code>
+     * @param resolution
+     *            requested resolution in units of the envelope per pixel
+     * @return request of all tiles intersecting the envelope, never <code>null</code>
+     */
+    public static TileRequest area( Envelope envelope, double resolution ) {
+        return new TileRequest( null, 0, 0, envelope, resolution );
+    }
+
+    /**
+     * Fetches the requested tiles and reads their images. Tiles that are missing or could not be fetched are counted
+     * as unavailable.
+     * 
+     * @param dataset
+     *            dataset to fetch the tiles from, must not be <code>null</code>
+     * @param statistics
+     *            statistics to count the tiles in, must not be <code>null</code>
+     * @throws TileIOException
+     *             if a single tile was requested and could not be fetched
+     */
+    public void execute( TileDataSet dataset, LoadTestStatistics statistics ) {
+        if ( envelope == null ) {
+            TileDataLevel level = dataset.getTileDataLevel( matrixId );
+            Tile tile = level != null ? level.getTile( x, y ) : null;
+            read( tile, statistics );
+            return;
+        }
+        Iterator<Tile> tiles = dataset.getTiles( envelope, resolution );
+        try {
+            while ( tiles.hasNext() ) {
+                read( tiles.next(), statistics );
+            }
+        } finally {
+            // cancels the pending fetches of a streaming iterator if reading failed
+            if ( tiles instanceof Closeable ) {
+                closeQuietly( (Closeable) tiles );
+            }
+        }
+    }
+
+    private void read( Tile tile, LoadTestStatistics statistics ) {
+        if ( tile == null ) {
+            statistics.addUnavailableTile();
+            return;
+        }
+        InputStream in = null;
+        try {
+            in = tile.getAsStream();
+            statistics.addTile( toByteArray( in ).length );
+        } catch ( TileIOException e ) {
+            statistics.addUnavailableTile();
+        } catch ( IOException e ) {
+            statistics.addUnavailableTile();
+        } finally {
+            closeQuietly( in );
+        }
+    }
+
+    @Override
+    public String toString() {
+        if ( envelope == null ) {
+            return matrixId + "/" + x + "/" + y;
+        }
+        return envelope + "@" + resolution;
+    }
+
+}
@@ -0,0 +1,438 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.cs.persistence.CRSManager;
+import org.deegree.geometry.Envelope;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.TileMatrixSet;
+import org.deegree.tile.persistence.cassandra.CassandraTileDataLevel;
+import org.deegree.tile.persistence.cassandra.CassandraTileDataSet;
+import org.deegree.tile.persistence.cassandra.CassandraTileStore;
+import org.deegree.tile.persistence.cassandra.TileOverzoom;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.CircuitBreaker;
+import org.deegree.tile.persistence.cassandra.db.LocalTileCache;
+
+/**
+ * Offline load test of the {@link CassandraTileStore}.<br/>
+ * <br/>
+ * The store is set up in-process on top of a {@link SimulatedCassandraDB}, with a GoogleMapsCompatible like tile
+ * matrix set (EPSG:3857, 256x256 pixel tiles, level <code>z</code> has <code>2^z x 2^z</code> tiles and the identifier
+ * <code>matrixIdPrefix + z</code>). The requests of an access log ({@link AccessLogWorkload}) or of a synthetic
+ * {@link ZipfWorkload} are issued through the {@link TileDataLevel} API, either by a fixed number of threads issuing
+ * requests back to back (<code>mode=closed</code>) or at a fixed arrival rate (<code>mode=open</code>). In open mode the
+ * latency is measured from the scheduled arrival of a request, so queueing in front of an overloaded store is part of
+ * the reported latency. Finally throughput, latency percentiles, cache hit ratios and the number of backend calls are
+ * printed.<br/>
+ * <br/>
+ * Options are passed as <code>name=value</code> arguments, see {@link #main(String[])}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileStoreLoadTest {
+
+    private static final String[][] OPTIONS = {
+        { "log", "", "access log to replay, synthetic Zipf workload if empty" },
+        { "requests", "100000", "number of requests, -1 to replay the access log once" },
+        { "mode", "closed", "closed (back to back) or open (fixed rate)" },
+        { "threads", "16", "number of request threads" },
+        { "rate", "1000", "requests per second in open mode" },
+        { "level", "12", "tile matrix of the Zipf workload" },
+        { "keys", "100000", "distinct tiles of the Zipf workload" },
+        { "exponent", "1.0", "skew of the Zipf workload" },
+        { "seed", "1", "seed of the Zipf workload" },
+        { "levels", "19", "number of tile matrices" },
+        { "matrixIdPrefix", "", "prefix of the tile matrix identifiers" },
+        { "latency", "2.0", "median backend latency in milliseconds" },
+        { "latencySigma", "0.5", "log-normal sigma of the backend latency" },
+        { "errorRate", "0.0", "share of failing backend calls" },
+        { "outagePeriod", "0", "milliseconds between backend outages" },
+        { "outageDuration", "0", "duration of a backend outage in milliseconds" },
+        { "missingRate", "0.0", "share of tiles missing in the backend" },
+        { "cacheBytes", "0", "size of the local cache, 0 for no cache" },
+        { "cacheTtl", "60000", "time to live of local cache entries" },
+        { "breaker", "false", "guard the backend with a circuit breaker" },
+        { "slowCallThreshold", "1000", "slow call threshold of the breaker" },
+        { "overzoom", "0", "levels to synthesize missing tiles from, 0 for none" } };
+
+    private static final String DATASET_ID = "loadtest";
+
+    private static final String COLUMN_FAMILY = "tilecache";
+
+    private static final double WORLD_EXTENT = 20037508.3427892;
+
+    private static final int TILE_SIZE = 256;
+
+    private final Map<String, String> options;
+
+    private SimulatedCassandraDB db;
+
+    private CircuitBreaker circuitBreaker;
+
+    private LocalTileCache localCache;
+
+    private LocalTileCache overzoomCache;
+
+    private CassandraTileStore store;
+
+    private TileMatrixSet tileMatrixSet;
+
+    private LoadTestStatistics statistics;
+
+    private long elapsedNanos;
+
+    /**
+     * Creates a new {@link TileStoreLoadTest} instance.
+     * 
+     * @param options
+     *            options by name, missing options are set to their defaults, must not be <code>null</code>
+     */
+    public TileStoreLoadTest( Map<String, String> options ) {
+        this.options = new HashMap<String, String>();
+        for ( String[] option : OPTIONS ) {
+            this.options.put( option[0], option[1] );
+        }
+        for ( Map.Entry<String, String> option : options.entrySet() ) {
+            if ( !this.options.containsKey( option.getKey() ) ) {
+                throw new IllegalArgumentException( "Unknown option " + option.getKey() + "." );
+            }
+            this.options.put( option.getKey(), option.getValue() );
+        }
+    }
+
+    /**
+     * Runs the load test with the options given as <code>name=value</code> arguments and prints the results.
+     * 
+     * @param args
+     *            options
+     * @throws Exception
+     *             if the load test failed
+     */
+    public static void main( String[] args ) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for ( String arg : args ) {
+            int i = arg.indexOf( '=' );
+            if ( i < 1 ) {
+                printUsage( System.err );
+                System.exit( 1 );
+            }
+            options.put( arg.substring( 0, i ), arg.substring( i + 1 ) );
+        }
+        TileStoreLoadTest loadTest;
+        try {
+            loadTest = new TileStoreLoadTest( options );
+            loadTest.run();
+        } catch ( IllegalArgumentException e ) {
+            System.err.println( e.getMessage() );
+            printUsage( System.err );
+            System.exit( 1 );
+            return;
+        }
+        loadTest.report( System.out );
+    }
+
+    /**
+     * Sets up the store, issues all requests of the workload and tears the store down again.
+     * 
+     * @throws IllegalArgumentException
+     *             if an option is invalid
+     * @throws IOException
+     *             if the workload could not be read
+     * @throws InterruptedException
+     *             if the calling thread was interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        boolean open = "open".equals( options.get( "mode" ) );
+        if ( !open && !"closed".equals( options.get( "mode" ) ) ) {
+            throw new IllegalArgumentException( "Unknown mode " + options.get( "mode" ) + "." );
+        }
+        setUp();
+        try {
+            TileDataSet dataset = store.getTileDataSet( DATASET_ID );
+            Workload workload = createWorkload();
+            long start = System.nanoTime();
+            if ( open ) {
+                runOpen( workload, dataset );
+            } else {
+                runClosed( workload, dataset );
+            }
+            elapsedNanos = System.nanoTime() - start;
+        } finally {
+            store.destroy();
+            db.destroy();
+        }
+    }
+
+    /**
+     * Prints the results of the last run.
+     * 
+     * @param out
+     *            stream to print to, must not be <code>null</code>
+     */
+    public void report( PrintStream out ) {
+        double seconds = elapsedNanos / 1e9;
+        int requests = statistics.getRequests();
+        out.println( String.format( Locale.ENGLISH, "Requests:        %d in %.2f s (%.1f requests/s), %d failed",
+                                    requests, seconds, requests / seconds, statistics.getFailedRequests() ) );
+        out.println( String.format( Locale.ENGLISH,
+                                    "Tiles:           %d delivered (%.1f tiles/s, %.1f MB/s), %d unavailable",
+                                    statistics.getTiles(), statistics.getTiles() / seconds,
+                                    statistics.getBytes() / seconds / 1048576, statistics.getUnavailableTiles() ) );
+        out.println( String.format( Locale.ENGLISH,
+                                    "Latency [ms]:    p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                                    millis( 50 ), millis( 90 ), millis( 99 ), millis( 99.9 ), millis( 100 ) ) );
+        if ( localCache != null ) {
+            out.println( formatCache( "Local cache:     ", localCache ) );
+        }
+        if ( overzoomCache != null ) {
+            out.println( formatCache( "Overzoom cache:  ", overzoomCache ) );
+        }
+        out.println( String.format( Locale.ENGLISH, "Backend calls:   %d reads, %d writes, %d deletes, %d failed",
+                                    db.getReads(), db.getWrites(), db.getDeletes(), db.getErrors() ) );
+        if ( circuitBreaker != null ) {
+            out.println( "Circuit breaker: " + circuitBreaker.getState() );
+        }
+    }
+
+    private void setUp() {
+        db = new SimulatedCassandraDB( createTileImage(), doubleOption( "missingRate" ),
+                                       SimulatedCassandraDB.logNormalLatency( doubleOption( "latency" ),
+                                                                              doubleOption( "latencySigma" ) ),
+                                       SimulatedCassandraDB.failures( doubleOption( "errorRate" ),
+                                                                      longOption( "outagePeriod" ),
+                                                                      longOption( "outageDuration" ) ), 4 );
+        if ( Boolean.parseBoolean( options.get( "breaker" ) ) ) {
+            circuitBreaker = new CircuitBreaker( 0.5, longOption( "slowCallThreshold" ), 0.8, 100, 20, 10000, 3 );
+            db.setCircuitBreaker( circuitBreaker );
+        }
+
+        CassandraConnector caConnector = new CassandraConnector( db, COLUMN_FAMILY );
+        if ( longOption( "cacheBytes" ) > 0 ) {
+            localCache = new LocalTileCache( longOption( "cacheBytes" ), longOption( "cacheTtl" ) );
+            caConnector.setLocalCache( localCache );
+        }
+        TileOverzoom overzoom = null;
+        if ( longOption( "overzoom" ) > 0 ) {
+            overzoomCache = new LocalTileCache( 67108864L, 3600000L );
+            overzoom = new TileOverzoom( caConnector, (int) longOption( "overzoom" ), overzoomCache );
+        }
+
+        tileMatrixSet = createTileMatrixSet();
+        List<TileDataLevel> levels = new ArrayList<TileDataLevel>();
+        for ( TileMatrix tm : tileMatrixSet.getTileMatrices() ) {
+            levels.add( new CassandraTileDataLevel( tm, caConnector, overzoom ) );
+        }
+        CassandraTileDataSet dataset = new CassandraTileDataSet( levels, tileMatrixSet, "image/png", caConnector );
+        caConnector.setTileDataSet( dataset );
+        store = new CassandraTileStore( Collections.<String, TileDataSet> singletonMap( DATASET_ID, dataset ) );
+    }
+
+    private Workload createWorkload() throws IOException {
+        long requests = longOption( "requests" );
+        String log = options.get( "log" );
+        if ( log.length() > 0 ) {
+            AccessLogWorkload workload = new AccessLogWorkload( new File( log ), getCrs(), requests );
+            statistics = new LoadTestStatistics( (int) workload.getRequests() );
+            return workload;
+        }
+        if ( requests < 0 ) {
+            throw new IllegalArgumentException( "The number of requests of a Zipf workload must not be negative." );
+        }
+        statistics = new LoadTestStatistics( (int) requests );
+        List<TileMatrix> matrices = tileMatrixSet.getTileMatrices();
+        long level = longOption( "level" );
+        if ( level < 0 || level >= matrices.size() ) {
+            throw new IllegalArgumentException( "Option level must be between 0 and " + ( matrices.size() - 1 ) + "." );
+        }
+        TileMatrix matrix = matrices.get( (int) level );
+        return new ZipfWorkload( matrix, (int) longOption( "keys" ), doubleOption( "exponent" ), requests,
+                                 longOption( "seed" ) );
+    }
+
+    private void runClosed( final Workload workload, final TileDataSet dataset ) throws InterruptedException {
+        int threads = (int) longOption( "threads" );
+        ExecutorService executor = Executors.newFixedThreadPool( threads );
+        for ( int i = 0; i < threads; i++ ) {
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    TileRequest request;
+                    while ( ( request = workload.next() ) != null ) {
+                        execute( request, dataset, System.nanoTime() );
+                    }
+                }
+            } );
+        }
+        executor.shutdown();
+        executor.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+    }
+
+    private void runOpen( Workload workload, final TileDataSet dataset ) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool( (int) longOption( "threads" ) );
+        double intervalNanos = 1e9 / doubleOption( "rate" );
+        long start = System.nanoTime();
+        TileRequest request;
+        for ( long i = 0; ( request = workload.next() ) != null; i++ ) {
+            final long arrival = start + (long) ( i * intervalNanos );
+            long wait = arrival - System.nanoTime();
+            if ( wait > 0 ) {
+                TimeUnit.NANOSECONDS.sleep( wait );
+            }
+            final TileRequest scheduled = request;
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    execute( scheduled, dataset, arrival );
+                }
+            } );
+        }
+        executor.shutdown();
+        executor.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+    }
+
+    private void execute( TileRequest request, TileDataSet dataset, long startNanos ) {
+        boolean failed = false;
+        try {
+            request.execute( dataset, statistics );
+        } catch ( RuntimeException e ) {
+            failed = true;
+        }
+        statistics.record( System.nanoTime() - startNanos, failed );
+    }
+
+    private TileMatrixSet createTileMatrixSet() {
+        ICRS crs = getCrs();
+        Envelope extent = new GeometryFactory().createEnvelope( -WORLD_EXTENT, -WORLD_EXTENT, WORLD_EXTENT,
+                                                                WORLD_EXTENT, crs );
+        SpatialMetadata metadata = new SpatialMetadata( extent, Collections.singletonList( crs ) );
+        List<TileMatrix> matrices = new ArrayList<TileMatrix>();
+        String prefix = options.get( "matrixIdPrefix" );
+        for ( int z = 0; z < longOption( "levels" ); z++ ) {
+            long numTiles = 1L << z;
+            double resolution = 2 * WORLD_EXTENT / TILE_SIZE / numTiles;
+            matrices.add( new TileMatrix( prefix + z, metadata, TILE_SIZE, TILE_SIZE, resolution, numTiles,
+                                          numTiles ) );
+        }
+        return new TileMatrixSet( DATASET_ID, null, matrices, metadata );
+    }
+
+    private static ICRS getCrs() {
+        return CRSManager.getCRSRef( "EPSG:3857" );
+    }
+
+    private static ByteBuffer createTileImage() {
+        BufferedImage img = new BufferedImage( TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB );
+        Graphics2D g = img.createGraphics();
+        g.setPaint( new GradientPaint( 0, 0, Color.WHITE, TILE_SIZE, TILE_SIZE, Color.BLUE ) );
+        g.fillRect( 0, 0, TILE_SIZE, TILE_SIZE );
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write( img, "png", out );
+        } catch ( IOException e ) {
+            throw new IllegalStateException( e );
+        }
+        return ByteBuffer.wrap( out.toByteArray() );
+    }
+
+    private String formatCache( String label, LocalTileCache cache ) {
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        return String.format( Locale.ENGLISH, "%s%d hits, %d misses (%.1f %% hit ratio)", label, hits,
+                              cache.getMisses(), lookups > 0 ? 100.0 * hits / lookups : 0 );
+    }
+
+    private double millis( double percentile ) {
+        return statistics.getLatencyPercentile( percentile ) / 1e6;
+    }
+
+    private long longOption( String name ) {
+        try {
+            return Long.parseLong( options.get( name ) );
+        } catch ( NumberFormatException e ) {
+            throw new IllegalArgumentException( "Option " + name + " must be an integer." );
+        }
+    }
+
+    private double doubleOption( String name ) {
+        try {
+            return Double.parseDouble( options.get( name ) );
+        } catch ( NumberFormatException e ) {
+            throw new IllegalArgumentException( "Option " + name + " must be a number." );
+        }
+    }
+
+    private static void printUsage( PrintStream out ) {
+        out.println( "Usage: " + TileStoreLoadTest.class.getName() + " [name=value ...]" );
+        out.println( "Options (default):" );
+        for ( String[] option : OPTIONS ) {
+            out.println( String.format( "  %-18s %s (%s)", option[0], option[2], option[1] ) );
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.deegree.tile.TileMatrix;
+
+/**
+ * Synthetic {@link Workload} requesting tiles of a single tile matrix with Zipf-distributed popularity: the tile of rank
+ * <code>k</code> is requested with a probability proportional to <code>1 / k^exponent</code>. The tiles and their ranks
+ * are chosen randomly.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class ZipfWorkload implements Workload {
+
+    private final String matrixId;
+
+    private final long[] tileX;
+
+    private final long[] tileY;
+
+    // cumulative probability of the ranks
+    private final double[] cdf;
+
+    private final Random random;
+
+    private final long requests;
+
+    private final AtomicLong issued = new AtomicLong();
+
+    /**
+     * Creates a new {@link ZipfWorkload} instance.
+     * 
+     * @param matrix
+     *            tile matrix to request tiles of, must not be <code>null</code>
+     * @param keys
+     *            number of distinct tiles, limited to the number of tiles of the matrix
+     * @param exponent
+     *            skew of the popularity, <code>0</code> for uniformly distributed requests
+     * @param requests
+     *            number of requests
+     * @param seed
+     *            seed of the random tile choice
+     */
+    public ZipfWorkload( TileMatrix matrix, int keys, double exponent, long requests, long seed ) {
+        this.matrixId = matrix.getIdentifier();
+        this.requests = requests;
+        this.random = new Random( seed );
+
+        long numTilesX = matrix.getNumTilesX();
+        long numTiles = numTilesX * matrix.getNumTilesY();
+        int n = (int) Math.min( keys, numTiles );
+        tileX = new long[n];
+        tileY = new long[n];
+        Set<Long> chosen = new HashSet<Long>();
+        for ( int i = 0; i < n; i++ ) {
+            long index;
+            if ( n == numTiles ) {
+                index = i;
+            } else {
+                do {
+                    index = (long) ( random.nextDouble() * numTiles );
+                } while ( !chosen.add( index ) );
+            }
+            tileX[i] = index % numTilesX;
+            tileY[i] = index / numTilesX;
+        }
+        shuffle();
+
+        cdf = new double[n];
+        double sum = 0;
+        for ( int i = 0; i < n; i++ ) {
+            sum += 1 / Math.pow( i + 1, exponent );
+            cdf[i] = sum;
+        }
+        for ( int i = 0; i < n; i++ ) {
+            cdf[i] /= sum;
+        }
+    }
+
+    @Override
+    public TileRequest next() {
+        if ( issued.incrementAndGet() > requests ) {
+            return null;
+        }
+        int rank = Arrays.binarySearch( cdf, random.nextDouble() );
+        if ( rank < 0 ) {
+            rank = Math.min( -rank - 1, cdf.length - 1 );
+        }
+        return TileRequest.tile( matrixId, tileX[rank], tileY[rank] );
+    }
+
+    private void shuffle() {
+        for ( int i = tileX.length - 1; i > 0; i-- ) {
+            int j = random.nextInt( i + 1 );
+            long x = tileX[i];
+            long y = tileY[i];
+            tileX[i] = tileX[j];
+            tileY[i] = tileY[j];
+            tileX[j] = x;
+            tileY[j] = y;
+        }
+    }
+
+}
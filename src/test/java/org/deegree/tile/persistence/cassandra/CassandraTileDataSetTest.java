@@ -0,0 +1,216 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra;
+
+import static org.deegree.tile.persistence.cassandra.loadtest.SimulatedCassandraDB.constantLatency;
+import static org.deegree.tile.persistence.cassandra.loadtest.SimulatedCassandraDB.failures;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.cs.persistence.CRSManager;
+import org.deegree.geometry.Envelope;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.TileMatrixSet;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.loadtest.SimulatedCassandraDB;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CassandraTileDataSet#getTiles(Envelope, double)} and the {@link CassandraTileIterator}, using a
+ * {@link SimulatedCassandraDB} and a tile matrix set with three levels (resolution 4, 2 and 1, 256 pixel tiles).
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CassandraTileDataSetTest {
+
+    private static final byte[] IMAGE = { 1, 2, 3, 4 };
+
+    private static final ICRS CRS = CRSManager.getCRSRef( "EPSG:25832" );
+
+    private static final GeometryFactory FAC = new GeometryFactory();
+
+    private static final Envelope EXTENT = FAC.createEnvelope( 0, 0, 1024, 1024, CRS );
+
+    private SimulatedCassandraDB db;
+
+    @After
+    public void tearDown() {
+        db.destroy();
+    }
+
+    @Test
+    public void testSelectsCoarsestLevelFineEnough() {
+        CassandraTileDataSet tds = createDataSet( 0, 0, false );
+
+        assertEquals( 4, count( tds.getTiles( EXTENT, 3 ) ) );
+        assertEquals( 4, count( tds.getTiles( EXTENT, 2 ) ) );
+        assertEquals( 1, count( tds.getTiles( EXTENT, 10 ) ) );
+    }
+
+    @Test
+    public void testSelectsFinestLevelIfNoneFineEnough() {
+        CassandraTileDataSet tds = createDataSet( 0, 0, false );
+
+        assertEquals( 16, count( tds.getTiles( EXTENT, 0.5 ) ) );
+    }
+
+    @Test
+    public void testLevelSelectionIgnoresLevelOrder() {
+        CassandraTileDataSet tds = createDataSet( 0, 0, true );
+
+        assertEquals( 4, count( tds.getTiles( EXTENT, 3 ) ) );
+        assertEquals( 16, count( tds.getTiles( EXTENT, 0.5 ) ) );
+    }
+
+    @Test
+    public void testReturnsTilesIntersectingEnvelope() {
+        CassandraTileDataSet tds = createDataSet( 0, 0, false );
+
+        Set<String> bboxes = new HashSet<String>();
+        Iterator<Tile> tiles = tds.getTiles( FAC.createEnvelope( 300, 300, 700, 500, CRS ), 1 );
+        while ( tiles.hasNext() ) {
+            Tile tile = tiles.next();
+            assertNotNull( tile.getAsStream() );
+            Envelope bbox = tile.getEnvelope();
+            bboxes.add( (long) bbox.getMin().get0() + "," + (long) bbox.getMin().get1() );
+        }
+
+        assertEquals( new HashSet<String>( Arrays.asList( "256,256", "512,256" ) ), bboxes );
+    }
+
+    @Test
+    public void testMissingTilesFailOnAccess() {
+        CassandraTileDataSet tds = createDataSet( 1, 0, false );
+
+        Iterator<Tile> tiles = tds.getTiles( EXTENT, 2 );
+        assertEquals( 4, assertAllFail( tiles ) );
+    }
+
+    @Test
+    public void testFailedQueriesFailOnAccess() {
+        CassandraTileDataSet tds = createDataSet( 0, 1, false );
+
+        Iterator<Tile> tiles = tds.getTiles( EXTENT, 1 );
+        assertEquals( 16, assertAllFail( tiles ) );
+    }
+
+    @Test
+    public void testNoLevels() {
+        db = new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ), failures( 0, 0, 0 ), 1 );
+        TileMatrixSet tms = createTileMatrixSet( Collections.<TileMatrix> emptyList() );
+        CassandraTileDataSet tds = new CassandraTileDataSet( Collections.<TileDataLevel> emptyList(), tms, "image/png",
+                                                             new CassandraConnector( db, "tiles" ) );
+
+        assertFalse( tds.getTiles( EXTENT, 1 ).hasNext() );
+    }
+
+    private CassandraTileDataSet createDataSet( double missingRate, double failureRate, boolean finestFirst ) {
+        db = new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), missingRate, constantLatency( 1 ),
+                                       failures( failureRate, 0, 0 ), 2 );
+        CassandraConnector connector = new CassandraConnector( db, "tiles" );
+        List<TileMatrix> matrices = new ArrayList<TileMatrix>();
+        List<TileDataLevel> levels = new ArrayList<TileDataLevel>();
+        for ( int level = 0; level < 3; level++ ) {
+            long numTiles = 1L << level;
+            TileMatrix matrix = new TileMatrix( String.valueOf( level ), createSpatialMetadata(), 256, 256,
+                                                4.0 / numTiles, numTiles, numTiles );
+            matrices.add( matrix );
+            levels.add( new CassandraTileDataLevel( matrix, connector ) );
+        }
+        if ( finestFirst ) {
+            Collections.reverse( levels );
+        }
+        CassandraTileDataSet tds = new CassandraTileDataSet( levels, createTileMatrixSet( matrices ), "image/png",
+                                                             connector );
+        connector.setTileDataSet( tds );
+        return tds;
+    }
+
+    private static TileMatrixSet createTileMatrixSet( List<TileMatrix> matrices ) {
+        return new TileMatrixSet( "test", null, matrices, createSpatialMetadata() );
+    }
+
+    private static SpatialMetadata createSpatialMetadata() {
+        return new SpatialMetadata( EXTENT, Collections.singletonList( CRS ) );
+    }
+
+    private static int count( Iterator<Tile> tiles ) {
+        int count = 0;
+        while ( tiles.hasNext() ) {
+            assertNotNull( tiles.next() );
+            count++;
+        }
+        return count;
+    }
+
+    private static int assertAllFail( Iterator<Tile> tiles ) {
+        int count = 0;
+        while ( tiles.hasNext() ) {
+            Tile tile = tiles.next();
+            try {
+                tile.getAsStream();
+                fail( "Tile should not be available." );
+            } catch ( TileIOException e ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
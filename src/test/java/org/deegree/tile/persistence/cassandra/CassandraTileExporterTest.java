@@ -0,0 +1,256 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra;
+
+import static java.util.Arrays.asList;
+import static org.deegree.tile.persistence.cassandra.CassandraTileExporter.getSrsId;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.cs.persistence.CRSManager;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.TileMatrixSet;
+import org.deegree.tile.persistence.cassandra.CassandraTileExporter.Format;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.InMemoryCassandraDB;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Tests for {@link CassandraTileExporter}, exports an {@link InMemoryCassandraDB} with the levels "0" (1x1 tiles) and
+ * "1" (2x2 tiles) and reads the written SQLite file.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CassandraTileExporterTest {
+
+    private static final byte[] IMAGE = { 1, 2, 3, 4 };
+
+    private static final byte[] OTHER_IMAGE = { 5, 6 };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryCassandraDB db;
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        db = new InMemoryCassandraDB();
+        // level 0, top left tile
+        db.addRow( "tiles", "png|00|000|000|000|000|000|000", ByteBuffer.wrap( IMAGE ), null, 0 );
+        // level 1, column 1 of the top row
+        db.addRow( "tiles", "png|01|000|000|001|000|000|001", ByteBuffer.wrap( OTHER_IMAGE ), null, 0 );
+        // level 1, column 0 of the bottom row
+        db.addRow( "tiles", "png|01|000|000|000|000|000|000", ByteBuffer.wrap( IMAGE ), null, 0 );
+        db.addRow( "tiles", "png|01|000|000|001|000|000|000", null, 0L, 0 );
+        db.addRow( "tiles", "jpeg|01|000|000|000|000|000|000", ByteBuffer.wrap( IMAGE ), null, 0 );
+        file = new File( folder.getRoot(), "export" );
+    }
+
+    @Test
+    public void testGetSrsId() {
+        assertEquals( 4326, getSrsId( "EPSG:4326" ) );
+        assertEquals( 4326, getSrsId( "CRS:84" ) );
+        assertEquals( 4326, getSrsId( "urn:ogc:def:crs:OGC:1.3:CRS84" ) );
+        assertEquals( 25832, getSrsId( "urn:ogc:def:crs:EPSG::25832" ) );
+        assertEquals( 25832, getSrsId( "http://www.opengis.net/def/crs/EPSG/0/25832" ) );
+        assertEquals( 3857, getSrsId( "EPSG:3857" ) );
+        assertEquals( 3857, getSrsId( "EPSG:900913" ) );
+        assertEquals( -1, getSrsId( "EPSG:unknown" ) );
+        assertEquals( -1, getSrsId( "local" ) );
+    }
+
+    @Test
+    public void testExportMBTiles()
+                            throws Exception {
+        long exported = createExporter( "EPSG:3857", Format.MBTILES, 2 ).export( file );
+
+        assertEquals( 3, exported );
+        // tile rows are counted from the bottom
+        assertEquals( asList( "0,0,0," + IMAGE.length, "1,0,0," + IMAGE.length, "1,1,1," + OTHER_IMAGE.length ),
+                      query( "SELECT zoom_level, tile_column, tile_row, length(tile_data) FROM tiles"
+                             + " ORDER BY zoom_level, tile_column" ) );
+        assertEquals( asList( "format,png", "maxzoom,1", "minzoom,0", "name,test" ),
+                      query( "SELECT name, value FROM metadata WHERE name IN ('format', 'name', 'minzoom', 'maxzoom')"
+                             + " ORDER BY name" ) );
+        assertArrayEquals( OTHER_IMAGE, queryImage( "SELECT tile_data FROM tiles WHERE zoom_level = 1"
+                                                    + " AND tile_column = 1" ) );
+    }
+
+    @Test
+    public void testExportGeoPackage()
+                            throws Exception {
+        long exported = createExporter( "EPSG:3857", Format.GEOPACKAGE, 100 ).export( file );
+
+        assertEquals( 3, exported );
+        // tile rows are counted from the top
+        assertEquals( asList( "0,0,0", "1,0,1", "1,1,0" ), query( "SELECT zoom_level, tile_column, tile_row FROM tiles"
+                                                                  + " ORDER BY zoom_level, tile_column" ) );
+        assertEquals( asList( "0,1,1,256,256,1024.0", "1,2,2,256,256,512.0" ),
+                      query( "SELECT zoom_level, matrix_width, matrix_height, tile_width, tile_height, pixel_x_size"
+                             + " FROM gpkg_tile_matrix ORDER BY zoom_level" ) );
+        assertEquals( asList( "tiles,3857,0.0,262144.0" ), query( "SELECT table_name, srs_id, min_x, max_x"
+                                                                  + " FROM gpkg_contents" ) );
+        assertEquals( asList( "-1", "0", "3857", "4326" ), query( "SELECT srs_id FROM gpkg_spatial_ref_sys"
+                                                                  + " ORDER BY srs_id" ) );
+        assertEquals( asList( "1196444487" ), query( "PRAGMA application_id" ) );
+    }
+
+    @Test
+    public void testExportGeoPackageWithUnknownCrs()
+                            throws Exception {
+        createExporter( "EPSG:25832", Format.GEOPACKAGE, 100 ).export( file );
+
+        assertEquals( asList( "-1" ), query( "SELECT srs_id FROM gpkg_tile_matrix_set" ) );
+    }
+
+    @Test(expected = IOException.class)
+    public void testExportRefusesExistingFile()
+                            throws Exception {
+        assertTrue( file.createNewFile() );
+
+        createExporter( "EPSG:3857", Format.MBTILES, 100 ).export( file );
+    }
+
+    @Test
+    public void testFailedExportDeletesFile()
+                            throws Exception {
+        db = new InMemoryCassandraDB() {
+            @Override
+            public Iterable<Row> scanTokenRange( String columnFamily, String columns, BigInteger firstToken,
+                                                 BigInteger lastToken, int fetchSize ) {
+                throw new IllegalStateException( "cassandra failed" );
+            }
+        };
+
+        try {
+            createExporter( "EPSG:3857", Format.MBTILES, 100 ).export( file );
+            fail( "Export did not fail." );
+        } catch ( TileIOException e ) {
+            assertFalse( file.exists() );
+        }
+    }
+
+    private CassandraTileExporter createExporter( String crs, Format format, int batchSize ) {
+        List<ICRS> crsList = Collections.singletonList( CRSManager.getCRSRef( crs ) );
+        SpatialMetadata metadata = new SpatialMetadata( new GeometryFactory().createEnvelope( 0, 0, 262144, 262144,
+                                                                                              crsList.get( 0 ) ),
+                                                        crsList );
+        CassandraConnector connector = new CassandraConnector( db, "tiles" );
+        List<TileMatrix> matrices = new ArrayList<TileMatrix>();
+        List<TileDataLevel> levels = new ArrayList<TileDataLevel>();
+        for ( int level = 0; level < 2; level++ ) {
+            long numTiles = 1L << level;
+            TileMatrix matrix = new TileMatrix( String.valueOf( level ), metadata, 256, 256, 1024.0 / numTiles,
+                                                numTiles, numTiles );
+            matrices.add( matrix );
+            levels.add( new CassandraTileDataLevel( matrix, connector ) );
+        }
+        CassandraTileDataSet tds = new CassandraTileDataSet( levels, new TileMatrixSet( "test", null, matrices,
+                                                                                        metadata ), "image/png",
+                                                             connector );
+        connector.setTileDataSet( tds );
+        return new CassandraTileExporter( tds, format, 2, batchSize );
+    }
+
+    private List<String> query( String sql )
+                            throws SQLException {
+        Connection conn = DriverManager.getConnection( "jdbc:sqlite:" + file.getAbsolutePath() );
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery( sql );
+            List<String> rows = new ArrayList<String>();
+            while ( rs.next() ) {
+                StringBuilder row = new StringBuilder();
+                for ( int i = 1; i <= rs.getMetaData().getColumnCount(); i++ ) {
+                    row.append( i > 1 ? "," : "" ).append( rs.getObject( i ) );
+                }
+                rows.add( row.toString() );
+            }
+            stmt.close();
+            return rows;
+        } finally {
+            conn.close();
+        }
+    }
+
+    private byte[] queryImage( String sql )
+                            throws SQLException {
+        Connection conn = DriverManager.getConnection( "jdbc:sqlite:" + file.getAbsolutePath() );
+        try {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery( sql );
+            byte[] image = rs.next() ? rs.getBytes( 1 ) : null;
+            stmt.close();
+            return image;
+        } finally {
+            conn.close();
+        }
+    }
+
+}
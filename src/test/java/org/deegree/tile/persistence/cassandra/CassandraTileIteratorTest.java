@@ -0,0 +1,145 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+package org.deegree.tile.persistence.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Tests for the timeout and the cancellation of the {@link CassandraTileIterator}, using a mocked
+ * {@link CassandraConnector} whose fetches only complete when the test completes them.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CassandraTileIteratorTest {
+
+    private final List<SettableFuture<ByteBuffer>> fetches = new ArrayList<SettableFuture<ByteBuffer>>();
+
+    private TileMatrix matrix;
+
+    private CassandraConnector connector;
+
+    @Before
+    public void setUp() {
+        matrix = new TileMatrix( "0", new SpatialMetadata( new GeometryFactory().createEnvelope( 0, 0, 1024, 1024,
+                                                                                                 null ),
+                                                           Collections.<ICRS> emptyList() ), 256, 256, 1.0, 4, 4 );
+        connector = mock( CassandraConnector.class );
+        Answer<ListenableFuture<ByteBuffer>> pendingFetch = new Answer<ListenableFuture<ByteBuffer>>() {
+            @Override
+            public ListenableFuture<ByteBuffer> answer( InvocationOnMock invocation ) {
+                SettableFuture<ByteBuffer> fetch = SettableFuture.create();
+                fetches.add( fetch );
+                return fetch;
+            }
+        };
+        when( connector.resolvAsync( anyString(), anyLong(), anyLong() ) ).thenAnswer( pendingFetch );
+    }
+
+    @Test
+    public void testNextReturnsArrivedTile() {
+        CassandraTileIterator tiles = new CassandraTileIterator( matrix, connector, null, 0, 0, 0, 1, 2, 5000 );
+        fetches.get( 1 ).set( ByteBuffer.wrap( new byte[] { 1 } ) );
+
+        assertTrue( tiles.hasNext() );
+        tiles.next();
+
+        assertTrue( tiles.hasNext() );
+        assertFalse( fetches.get( 0 ).isCancelled() );
+    }
+
+    @Test
+    public void testNextFailsIfNoTileArrivesInTime() {
+        CassandraTileIterator tiles = new CassandraTileIterator( matrix, connector, null, 0, 0, 1, 1, 2, 50 );
+
+        try {
+            tiles.next();
+            fail( "No tile should have arrived." );
+        } catch ( TileIOException e ) {
+            // expected
+        }
+
+        assertFalse( tiles.hasNext() );
+        for ( SettableFuture<ByteBuffer> fetch : fetches ) {
+            assertTrue( fetch.isCancelled() );
+        }
+    }
+
+    @Test
+    public void testCloseCancelsPendingFetches() {
+        CassandraTileIterator tiles = new CassandraTileIterator( matrix, connector, null, 0, 0, 3, 3, 4, 5000 );
+        fetches.get( 0 ).set( null );
+        tiles.next();
+
+        tiles.close();
+
+        assertFalse( tiles.hasNext() );
+        assertEquals( 5, fetches.size() );
+        assertFalse( fetches.get( 0 ).isCancelled() );
+        for ( SettableFuture<ByteBuffer> fetch : fetches.subList( 1, fetches.size() ) ) {
+            assertTrue( fetch.isCancelled() );
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.TileMatrixSet;
+import org.deegree.tile.persistence.TileStoreTransaction;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.InMemoryCassandraDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link CassandraTileStoreTransaction}, using an {@link InMemoryCassandraDB} with a single level "0" of 2x2
+ * tiles.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CassandraTileStoreTransactionTest {
+
+    // top left tile of level 0
+    private static final String ROW_KEY = "png|00|000|000|000|000|000|001";
+
+    private InMemoryCassandraDB db;
+
+    private CassandraTileStore store;
+
+    private TileOptimizer optimizer;
+
+    @Before
+    public void setUp() {
+        db = new InMemoryCassandraDB();
+        SpatialMetadata metadata = new SpatialMetadata( new GeometryFactory().createEnvelope( 0, 0, 512, 512, null ),
+                                                        Collections.<ICRS> emptyList() );
+        TileMatrix matrix = new TileMatrix( "0", metadata, 256, 256, 1.0, 2, 2 );
+        CassandraConnector connector = new CassandraConnector( db, "tiles" );
+        TileDataLevel level = new CassandraTileDataLevel( matrix, connector );
+        TileMatrixSet tms = new TileMatrixSet( "test", null, Collections.singletonList( matrix ), metadata );
+        CassandraTileDataSet tds = new CassandraTileDataSet( Collections.singletonList( level ), tms, "image/png",
+                                                             connector );
+        connector.setTileDataSet( tds );
+        store = mock( CassandraTileStore.class );
+        when( store.getTileDataSet( "tds" ) ).thenReturn( tds );
+    }
+
+    @After
+    public void tearDown() {
+        if ( optimizer != null ) {
+            optimizer.destroy();
+        }
+    }
+
+    @Test
+    public void testPutStoresTileUnchangedWithoutOptimizer()
+                            throws IOException {
+        byte[] image = encode( 0x80FF0000 );
+
+        transaction().put( "0", tile( image ), 0, 0 );
+
+        assertArrayEquals( image, toArray( db.getTileImage( ROW_KEY, "tiles" ) ) );
+    }
+
+    @Test
+    public void testPutStoresOptimizedTile()
+                            throws IOException {
+        useOptimizer( false );
+        byte[] image = encode( 0x80FF0000 );
+
+        transaction().put( "0", tile( image ), 0, 0 );
+
+        byte[] stored = toArray( db.getTileImage( ROW_KEY, "tiles" ) );
+        assertTrue( stored.length <= image.length );
+        assertEquals( 0x80FF0000, ImageIO.read( new ByteArrayInputStream( stored ) ).getRGB( 10, 10 ) );
+    }
+
+    @Test
+    public void testBlankTileCanBeReadAfterPut()
+                            throws IOException {
+        useOptimizer( false );
+
+        transaction().put( "0", tile( encode( 0 ) ), 0, 0 );
+
+        assertEquals( 0, readTile().getRGB( 10, 10 ) );
+    }
+
+    @Test
+    public void testSkippedBlankTileCanBeReadAfterPut()
+                            throws IOException {
+        useOptimizer( true );
+        db.addRow( "tiles", ROW_KEY, ByteBuffer.wrap( encode( 0xFFFF0000 ) ), null, 0 );
+
+        transaction().put( "0", tile( encode( 0 ) ), 0, 0 );
+
+        BufferedImage blank = readTile();
+        assertEquals( 256, blank.getWidth() );
+        assertEquals( 0, blank.getRGB( 10, 10 ) >>> 24 );
+    }
+
+    @Test
+    public void testDelete()
+                            throws IOException {
+        db.addRow( "tiles", ROW_KEY, ByteBuffer.wrap( encode( 0xFFFF0000 ) ), null, 0 );
+
+        transaction().delete( "0", 0, 0 );
+
+        assertFalse( db.hasRow( "tiles", ROW_KEY ) );
+    }
+
+    private BufferedImage readTile()
+                            throws IOException {
+        return ImageIO.read( store.getTileDataSet( "tds" ).getTileDataLevel( "0" ).getTile( 0, 0 ).getAsStream() );
+    }
+
+    private void useOptimizer( boolean skipBlank ) {
+        optimizer = new TileOptimizer( 1, 10, false, skipBlank );
+        when( store.getTileOptimizer() ).thenReturn( optimizer );
+    }
+
+    private TileStoreTransaction transaction() {
+        return new CassandraTileStoreTransaction( "tds", store );
+    }
+
+    private static Tile tile( byte[] image ) {
+        Tile tile = mock( Tile.class );
+        when( tile.getAsStream() ).thenReturn( new ByteArrayInputStream( image ) );
+        return tile;
+    }
+
+    private static byte[] encode( int color )
+                            throws IOException {
+        BufferedImage image = new BufferedImage( 256, 256, BufferedImage.TYPE_INT_ARGB );
+        for ( int y = 0; y < 256; y++ ) {
+            for ( int x = 0; x < 256; x++ ) {
+                image.setRGB( x, y, color );
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write( image, "png", out );
+        return out.toByteArray();
+    }
+
+    private static byte[] toArray( ByteBuffer buffer ) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+        return bytes;
+    }
+
+}
@@ -0,0 +1,283 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.persistence.cassandra.TileOptimizer.OptimizedTile;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TileOptimizer}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileOptimizerTest {
+
+    private static final int SIZE = 64;
+
+    private TileOptimizer optimizer;
+
+    @After
+    public void tearDown() {
+        optimizer.destroy();
+    }
+
+    @Test
+    public void testFewColorsUsePalette()
+                            throws IOException {
+        optimizer = new TileOptimizer( 1, 10, false, false );
+        int[] pixels = new int[SIZE * SIZE];
+        int[] colors = { 0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0x80FFFFFF };
+        for ( int i = 0; i < pixels.length; i++ ) {
+            pixels[i] = colors[( i / 7 ) % colors.length];
+        }
+        byte[] original = encode( pixels, BufferedImage.TYPE_INT_ARGB );
+
+        OptimizedTile tile = optimizer.optimize( original );
+
+        assertTrue( tile.getSize() < original.length );
+        BufferedImage optimized = decode( tile.getImage() );
+        assertTrue( optimized.getColorModel() instanceof IndexColorModel );
+        assertArrayEquals( pixels, getPixels( optimized ) );
+        assertFalse( tile.isUniform() );
+    }
+
+    @Test
+    public void testManyColorsStayLosslessWithoutQuantization()
+                            throws IOException {
+        optimizer = new TileOptimizer( 1, 10, false, false );
+        int[] pixels = randomPixels();
+
+        OptimizedTile tile = optimizer.optimize( encode( pixels, BufferedImage.TYPE_INT_ARGB ) );
+
+        assertArrayEquals( pixels, getPixels( decode( tile.getImage() ) ) );
+    }
+
+    @Test
+    public void testQuantizationReducesColors()
+                            throws IOException {
+        optimizer = new TileOptimizer( 1, 10, true, false );
+
+        OptimizedTile tile = optimizer.optimize( encode( randomPixels(), BufferedImage.TYPE_INT_RGB ) );
+
+        Set<Integer> colors = new HashSet<Integer>();
+        for ( int pixel : getPixels( decode( tile.getImage() ) ) ) {
+            colors.add( pixel );
+        }
+        assertTrue( colors.size() <= 256 );
+    }
+
+    @Test
+    public void testUniformTilesShareEncoding()
+                            throws IOException {
+        optimizer = new TileOptimizer( 1, 10, false, false );
+        byte[] original = encode( uniformPixels( 0xFF336699 ), BufferedImage.TYPE_INT_RGB );
+
+        OptimizedTile first = optimizer.optimize( original );
+        OptimizedTile second = optimizer.optimize( original.clone() );
+
+        assertTrue( first.isUniform() );
+        assertFalse( first.isBlank() );
+        assertSame( first.getImage().array(), second.getImage().array() );
+        assertArrayEquals( uniformPixels( 0xFF336699 ), getPixels( decode( first.getImage() ) ) );
+    }
+
+    @Test
+    public void testDetectsBlankTiles()
+                            throws IOException {
+        optimizer = new TileOptimizer( 1, 10, false, true );
+
+        OptimizedTile tile = optimizer.optimize( encode( uniformPixels( 0 ), BufferedImage.TYPE_INT_ARGB ) );
+
+        assertTrue( tile.isBlank() );
+        assertTrue( tile.isUniform() );
+        assertTrue( optimizer.isSkipBlank() );
+        OptimizedTile other = optimizer.optimize( encode( uniformPixels( 0x00FFFFFF ), BufferedImage.TYPE_INT_ARGB ) );
+        assertTrue( other.isBlank() );
+        assertEquals( 0, decode( tile.getImage() ).getRGB( 0, 0 ) >>> 24 );
+    }
+
+    @Test
+    public void testKeeps16BitTiles()
+                            throws IOException {
+        optimizer = new TileOptimizer( 1, 10, true, false );
+        ColorModel colorModel = new ComponentColorModel( ColorSpace.getInstance( ColorSpace.CS_sRGB ),
+                                                         new int[] { 16, 16, 16 }, false, false, Transparency.OPAQUE,
+                                                         DataBuffer.TYPE_USHORT );
+        WritableRaster raster = colorModel.createCompatibleWritableRaster( SIZE, SIZE );
+        for ( int y = 0; y < SIZE; y++ ) {
+            for ( int x = 0; x < SIZE; x++ ) {
+                raster.setPixel( x, y, new int[] { x * 1000, y * 1000, 7 } );
+            }
+        }
+        byte[] original = encode( new BufferedImage( colorModel, raster, false, null ) );
+
+        assertSame( original, optimizer.optimize( original ).getImage().array() );
+    }
+
+    @Test
+    public void testKeepsGrayscaleTiles()
+                            throws IOException {
+        optimizer = new TileOptimizer( 1, 10, true, false );
+        BufferedImage gray = new BufferedImage( SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY );
+        for ( int y = 0; y < SIZE; y++ ) {
+            for ( int x = 0; x < SIZE; x++ ) {
+                gray.getRaster().setSample( x, y, 0, ( x + y ) % 2 * 100 );
+            }
+        }
+        byte[] original = encode( gray );
+
+        assertSame( original, optimizer.optimize( original ).getImage().array() );
+    }
+
+    @Test
+    public void testKeepsUndecodableTiles() {
+        optimizer = new TileOptimizer( 1, 10, false, false );
+        byte[] original = { 1, 2, 3 };
+
+        OptimizedTile tile = optimizer.optimize( original );
+
+        assertArrayEquals( original, tile.getImage().array() );
+        assertEquals( 3, tile.getOriginalSize() );
+    }
+
+    @Test
+    public void testCountsTilesAndBytes()
+                            throws IOException {
+        optimizer = new TileOptimizer( 2, 1, false, false );
+        byte[] uniform = encode( uniformPixels( 0xFF336699 ), BufferedImage.TYPE_INT_RGB );
+        byte[] blank = encode( uniformPixels( 0 ), BufferedImage.TYPE_INT_ARGB );
+
+        long bytesOut = 0;
+        for ( int i = 0; i < 5; i++ ) {
+            bytesOut += optimizer.optimize( uniform ).getSize();
+        }
+        bytesOut += optimizer.optimize( blank ).getSize();
+
+        assertEquals( 6, optimizer.getTiles() );
+        assertEquals( 6, optimizer.getUniformTiles() );
+        assertEquals( 1, optimizer.getBlankTiles() );
+        assertEquals( 5 * uniform.length + blank.length, optimizer.getBytesIn() );
+        assertEquals( bytesOut, optimizer.getBytesOut() );
+    }
+
+    @Test(expected = TileIOException.class)
+    public void testSubmitAfterDestroyFails() {
+        optimizer = new TileOptimizer( 1, 10, false, false );
+        optimizer.destroy();
+
+        optimizer.submit( new byte[] { 1, 2, 3 } );
+    }
+
+    @Test(expected = TileIOException.class)
+    public void testOptimizeAfterDestroyFails() {
+        optimizer = new TileOptimizer( 1, 10, false, false );
+        optimizer.destroy();
+
+        optimizer.optimize( new byte[] { 1, 2, 3 } );
+    }
+
+    private static int[] uniformPixels( int color ) {
+        int[] pixels = new int[SIZE * SIZE];
+        for ( int i = 0; i < pixels.length; i++ ) {
+            pixels[i] = color;
+        }
+        return pixels;
+    }
+
+    private static int[] randomPixels() {
+        Random random = new Random( 42 );
+        int[] pixels = new int[SIZE * SIZE];
+        for ( int i = 0; i < pixels.length; i++ ) {
+            pixels[i] = 0xFF000000 | random.nextInt( 0x1000000 );
+        }
+        return pixels;
+    }
+
+    private static byte[] encode( int[] pixels, int type )
+                            throws IOException {
+        BufferedImage image = new BufferedImage( SIZE, SIZE, type );
+        image.setRGB( 0, 0, SIZE, SIZE, pixels, 0, SIZE );
+        return encode( image );
+    }
+
+    private static byte[] encode( BufferedImage image )
+                            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write( image, "png", out );
+        return out.toByteArray();
+    }
+
+    private static BufferedImage decode( ByteBuffer image )
+                            throws IOException {
+        return ImageIO.read( new ByteArrayInputStream( image.array() ) );
+    }
+
+    private static int[] getPixels( BufferedImage image ) {
+        return image.getRGB( 0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth() );
+    }
+
+}
@@ -0,0 +1,296 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.Tiles;
+import org.deegree.tile.persistence.cassandra.TileOverzoom.Ancestor;
+import org.deegree.tile.persistence.cassandra.db.CassandraConnector;
+import org.deegree.tile.persistence.cassandra.db.InMemoryCassandraDB;
+import org.deegree.tile.persistence.cassandra.db.LocalTileCache;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for {@link TileOverzoom}, using a pyramid of three levels with 1x1, 2x2 and 4x4 tiles of 256 pixels. Only the
+ * tile of level "0" exists, its quadrants are red, green, blue and white (from top left to bottom right).
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileOverzoomTest {
+
+    private static final String ROOT_TILE = "png|00|000|000|000|000|000|000";
+
+    private final List<TileMatrix> matrices = new ArrayList<TileMatrix>();
+
+    private final AtomicInteger fetches = new AtomicInteger();
+
+    private InMemoryCassandraDB db;
+
+    private CassandraConnector connector;
+
+    @Before
+    public void setUp()
+                            throws IOException {
+        db = new InMemoryCassandraDB() {
+            @Override
+            protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+                fetches.incrementAndGet();
+                return super.fetchTileImageAsync( key, columnFamily );
+            }
+        };
+        db.addRow( "tiles", ROOT_TILE, createRootImage(), null, 0 );
+
+        SpatialMetadata metadata = new SpatialMetadata( new GeometryFactory().createEnvelope( 0, 0, 1024, 1024, null ),
+                                                        Collections.<ICRS> emptyList() );
+        List<TileDataLevel> levels = new ArrayList<TileDataLevel>();
+        TileDataSet tds = mock( TileDataSet.class );
+        for ( int i = 0; i < 3; i++ ) {
+            long numTiles = 1L << i;
+            TileMatrix matrix = new TileMatrix( String.valueOf( i ), metadata, 256, 256, 4.0 / numTiles, numTiles,
+                                                numTiles );
+            TileDataLevel level = mock( TileDataLevel.class );
+            when( level.getMetadata() ).thenReturn( matrix );
+            when( tds.getTileDataLevel( matrix.getIdentifier() ) ).thenReturn( level );
+            matrices.add( matrix );
+            levels.add( level );
+        }
+        when( tds.getTileDataLevels() ).thenReturn( levels );
+        when( tds.getNativeImageFormat() ).thenReturn( "image/png" );
+        connector = new CassandraConnector( db, "tiles" );
+        connector.setTileDataSet( tds );
+    }
+
+    @Test
+    public void testFindCandidatesNearestLevelFirst() {
+        TileOverzoom overzoom = createOverzoom( 5 );
+        TileMatrix matrix = matrices.get( 2 );
+
+        List<Ancestor> candidates = overzoom.findCandidates( matrix, Tiles.calcTileEnvelope( matrix, 3, 0 ) );
+
+        assertEquals( 2, candidates.size() );
+        assertEquals( "1|1|0", getKey( candidates.get( 0 ) ) );
+        assertEquals( "0|0|0", getKey( candidates.get( 1 ) ) );
+    }
+
+    @Test
+    public void testFindCandidatesHonoursMaxLevels() {
+        TileOverzoom overzoom = createOverzoom( 1 );
+        TileMatrix matrix = matrices.get( 2 );
+
+        List<Ancestor> candidates = overzoom.findCandidates( matrix, Tiles.calcTileEnvelope( matrix, 3, 0 ) );
+
+        assertEquals( 1, candidates.size() );
+        assertEquals( "1|1|0", getKey( candidates.get( 0 ) ) );
+    }
+
+    @Test
+    public void testSynthesizeCropsAncestorQuadrant() {
+        TileOverzoom overzoom = createOverzoom( 5 );
+
+        assertUniform( Color.GREEN, overzoom.synthesize( matrices.get( 1 ), 1, 0 ) );
+        assertUniform( Color.BLUE, overzoom.synthesize( matrices.get( 1 ), 0, 1 ) );
+        assertUniform( Color.BLUE, overzoom.synthesize( matrices.get( 2 ), 0, 3 ) );
+        assertUniform( Color.WHITE, overzoom.synthesize( matrices.get( 2 ), 3, 2 ) );
+    }
+
+    @Test
+    public void testSynthesizeWithoutAncestor() {
+        assertNull( createOverzoom( 1 ).synthesize( matrices.get( 2 ), 0, 0 ) );
+    }
+
+    @Test
+    public void testSynthesizedTilesAreCached() {
+        TileOverzoom overzoom = createOverzoom( 5 );
+        ByteBuffer synthesized = overzoom.synthesize( matrices.get( 2 ), 1, 1 );
+        db.deleteRow( ROOT_TILE, "tiles" );
+
+        assertEquals( synthesized, overzoom.synthesize( matrices.get( 2 ), 1, 1 ) );
+    }
+
+    @Test
+    public void testRequestFetchesSharedAncestorOnce()
+                            throws Exception {
+        TileOverzoom.Request request = createOverzoom( 5 ).newRequest();
+        List<ListenableFuture<Ancestor>> ancestors = new ArrayList<ListenableFuture<Ancestor>>();
+        for ( int y = 0; y < 2; y++ ) {
+            for ( int x = 0; x < 2; x++ ) {
+                ancestors.add( request.findAncestor( matrices.get( 2 ), x, y ) );
+            }
+        }
+
+        // the missing tile of level 1 and the tile of level 0
+        assertEquals( 2, fetches.get() );
+        assertUniform( Color.RED, request.synthesize( matrices.get( 2 ), 0, 0, ancestors.get( 0 ).get() ) );
+        assertUniform( Color.RED, request.synthesize( matrices.get( 2 ), 1, 1, ancestors.get( 3 ).get() ) );
+    }
+
+    @Test
+    public void testRequestServesCachedTiles() {
+        TileOverzoom overzoom = createOverzoom( 5 );
+        ByteBuffer synthesized = overzoom.synthesize( matrices.get( 1 ), 0, 0 );
+        fetches.set( 0 );
+
+        assertEquals( synthesized, overzoom.newRequest().getCached( matrices.get( 1 ), 0, 0 ) );
+        assertEquals( 0, fetches.get() );
+    }
+
+    @Test
+    public void testRequestSynthesizesExpiredTilesAgain()
+                            throws Exception {
+        TileOverzoom overzoom = new TileOverzoom( connector, 5, new LocalTileCache( 1024 * 1024, 1 ) );
+        overzoom.synthesize( matrices.get( 1 ), 0, 0 );
+        Thread.sleep( 10 );
+        TileOverzoom.Request request = overzoom.newRequest();
+
+        assertNull( request.getCached( matrices.get( 1 ), 0, 0 ) );
+        Ancestor ancestor = request.findAncestor( matrices.get( 1 ), 0, 0 ).get();
+        assertUniform( Color.RED, request.synthesize( matrices.get( 1 ), 0, 0, ancestor ) );
+    }
+
+    @Test
+    public void testIteratorSynthesizesExpiredTilesAgain()
+                            throws Exception {
+        TileOverzoom overzoom = new TileOverzoom( connector, 5, new LocalTileCache( 1024 * 1024, 1 ) );
+        overzoom.synthesize( matrices.get( 1 ), 1, 0 );
+        Thread.sleep( 10 );
+
+        Iterator<Tile> tiles = new CassandraTileIterator( matrices.get( 1 ), connector, overzoom, 0, 0, 1, 1, 4, 5000 );
+        int count = 0;
+        while ( tiles.hasNext() ) {
+            assertNotNull( ImageIO.read( tiles.next().getAsStream() ) );
+            count++;
+        }
+        assertEquals( 4, count );
+    }
+
+    @Test
+    public void testRequestFailsIfFetchFails()
+                            throws InterruptedException {
+        db = new InMemoryCassandraDB() {
+            @Override
+            protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+                return Futures.immediateFailedFuture( new TileIOException( "cassandra failed" ) );
+            }
+        };
+        CassandraConnector failing = new CassandraConnector( db, "tiles" );
+        failing.setTileDataSet( connector.getTileDataSet() );
+        connector = failing;
+
+        try {
+            createOverzoom( 5 ).newRequest().findAncestor( matrices.get( 1 ), 0, 0 ).get();
+            fail( "Request did not fail." );
+        } catch ( ExecutionException e ) {
+            assertEquals( TileIOException.class, e.getCause().getClass() );
+        }
+    }
+
+    private TileOverzoom createOverzoom( int maxLevels ) {
+        return new TileOverzoom( connector, maxLevels, new LocalTileCache( 1024 * 1024, 60000 ) );
+    }
+
+    private static String getKey( Ancestor ancestor ) {
+        return ancestor.getMatrix().getIdentifier() + "|" + ancestor.getX() + "|" + ancestor.getY();
+    }
+
+    private static ByteBuffer createRootImage()
+                            throws IOException {
+        BufferedImage image = new BufferedImage( 256, 256, BufferedImage.TYPE_INT_RGB );
+        Graphics2D g = image.createGraphics();
+        g.setColor( Color.RED );
+        g.fillRect( 0, 0, 128, 128 );
+        g.setColor( Color.GREEN );
+        g.fillRect( 128, 0, 128, 128 );
+        g.setColor( Color.BLUE );
+        g.fillRect( 0, 128, 128, 128 );
+        g.setColor( Color.WHITE );
+        g.fillRect( 128, 128, 128, 128 );
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write( image, "png", out );
+        return ByteBuffer.wrap( out.toByteArray() );
+    }
+
+    private static void assertUniform( Color expected, ByteBuffer png ) {
+        assertNotNull( png );
+        BufferedImage image = TileOverzoom.decode( png );
+        assertEquals( 256, image.getWidth() );
+        assertEquals( 256, image.getHeight() );
+        for ( int y = 0; y < 256; y += 15 ) {
+            for ( int x = 0; x < 256; x += 15 ) {
+                assertEquals( "Pixel " + x + "," + y, expected.getRGB(), image.getRGB( x, y ) );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,471 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.deegree.tile.persistence.cassandra.loadtest.SimulatedCassandraDB.constantLatency;
+import static org.deegree.tile.persistence.cassandra.loadtest.SimulatedCassandraDB.failures;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.TileMatrix;
+import org.deegree.tile.persistence.TileStore;
+import org.deegree.tile.persistence.cassandra.db.HotTileTracker.HotTile;
+import org.deegree.tile.persistence.cassandra.loadtest.SimulatedCassandraDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for {@link CassandraConnector}, using a {@link SimulatedCassandraDB} and a mocked upstream {@link TileStore}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CassandraConnectorTest {
+
+    private static final byte[] IMAGE = { 1, 2, 3, 4 };
+
+    private TileStore upstream;
+
+    private SimulatedCassandraDB db;
+
+    private CassandraConnector connector;
+
+    @Before
+    public void setUp() {
+        upstream = mock( TileStore.class );
+        TileDataSet upstreamDataSet = mock( TileDataSet.class );
+        when( upstreamDataSet.getNativeImageFormat() ).thenReturn( "image/png" );
+        when( upstream.getTileDataSet( "upstream" ) ).thenReturn( upstreamDataSet );
+    }
+
+    @After
+    public void tearDown() {
+        connector.destroy();
+        db.destroy();
+    }
+
+    @Test
+    public void testResolvServesFreshTileFromLocalCache() {
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) );
+        connector.setLocalCache( new LocalTileCache( 1000, 60000 ) );
+
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 1, 2 ) ) );
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 1, 2 ) ) );
+
+        assertEquals( 1, db.getReads() );
+    }
+
+    @Test
+    public void testResolvServesStaleTileWhileCassandraFails() {
+        final AtomicBoolean failing = new AtomicBoolean();
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) {
+            @Override
+            protected ByteBuffer fetchTileImage( String key, String columnFamily ) {
+                if ( failing.get() ) {
+                    throw new TileIOException( "Simulated outage." );
+                }
+                return super.fetchTileImage( key, columnFamily );
+            }
+        } );
+        connector.setLocalCache( new LocalTileCache( 1000, 0 ) );
+        connector.resolv( "0", 1, 2 );
+
+        failing.set( true );
+
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 1, 2 ) ) );
+    }
+
+    @Test(expected = TileIOException.class)
+    public void testResolvFailsWithoutCachedTile() {
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 1, 0, 0 ), 1 ) );
+        connector.setLocalCache( new LocalTileCache( 1000, 0 ) );
+
+        connector.resolv( "0", 1, 2 );
+    }
+
+    @Test
+    public void testResolvAsyncServesStaleTileWhileCassandraFails()
+                            throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean();
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) {
+            @Override
+            protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+                if ( failing.get() ) {
+                    return Futures.immediateFailedFuture( new TileIOException( "Simulated outage." ) );
+                }
+                return super.fetchTileImageAsync( key, columnFamily );
+            }
+        } );
+        connector.setLocalCache( new LocalTileCache( 1000, 0 ) );
+        connector.resolvAsync( "0", 1, 2 ).get();
+
+        failing.set( true );
+
+        assertArrayEquals( IMAGE, toArray( connector.resolvAsync( "0", 1, 2 ).get() ) );
+    }
+
+    @Test
+    public void testResolvDropsStaleEntryOfDeletedTile() {
+        final AtomicBoolean failing = new AtomicBoolean();
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) {
+            @Override
+            protected ByteBuffer fetchTileImage( String key, String columnFamily ) {
+                if ( failing.get() ) {
+                    throw new TileIOException( "Simulated outage." );
+                }
+                return super.fetchTileImage( key, columnFamily );
+            }
+        } );
+        connector.setLocalCache( new LocalTileCache( 1000, 0 ) );
+        connector.resolv( "0", 1, 2 );
+        // deleted by another node, the local cache is not invalidated
+        db.deleteRow( "png|00|000|000|001|000|000|001", "tiles" );
+        assertNull( connector.resolv( "0", 1, 2 ) );
+
+        failing.set( true );
+
+        try {
+            connector.resolv( "0", 1, 2 );
+            fail( "Deleted tile was served from the local cache." );
+        } catch ( TileIOException e ) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testResolvAsyncDropsStaleEntryOfDeletedTile()
+                            throws Exception {
+        final AtomicBoolean failing = new AtomicBoolean();
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) {
+            @Override
+            protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+                if ( failing.get() ) {
+                    return Futures.immediateFailedFuture( new TileIOException( "Simulated outage." ) );
+                }
+                return super.fetchTileImageAsync( key, columnFamily );
+            }
+        } );
+        connector.setLocalCache( new LocalTileCache( 1000, 0 ) );
+        connector.resolvAsync( "0", 1, 2 ).get();
+        db.deleteRow( "png|00|000|000|001|000|000|001", "tiles" );
+        assertNull( connector.resolvAsync( "0", 1, 2 ).get() );
+
+        failing.set( true );
+
+        try {
+            connector.resolvAsync( "0", 1, 2 ).get();
+            fail( "Deleted tile was served from the local cache." );
+        } catch ( ExecutionException e ) {
+            assertTrue( e.getCause() instanceof TileIOException );
+        }
+    }
+
+    @Test
+    public void testRemoveInvalidatesLocalCache() {
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) );
+        connector.setLocalCache( new LocalTileCache( 1000, 60000 ) );
+        connector.resolv( "0", 1, 2 );
+
+        connector.remove( "0", 1, 2 );
+
+        assertNull( connector.resolv( "0", 1, 2 ) );
+    }
+
+    @Test
+    public void testResolvFetchesMissingTileFromUpstream()
+                            throws Exception {
+        Tile tile = tile( IMAGE );
+        when( upstream.getTile( "upstream", "0", 1, 2 ) ).thenReturn( tile );
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 1.0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ), 1000 );
+
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 1, 2 ) ) );
+        waitForRow( "png|00|000|000|001|000|000|001" );
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 1, 2 ) ) );
+
+        verify( upstream, times( 1 ) ).getTile( "upstream", "0", 1, 2 );
+    }
+
+    @Test
+    public void testResolvMissingEverywhere() {
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 1.0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ), 1000 );
+
+        assertNull( connector.resolv( "0", 1, 2 ) );
+        assertEquals( 0, db.getWrites() );
+    }
+
+    @Test(timeout = 5000)
+    public void testResolvTreatsSlowUpstreamAsMissing()
+                            throws Exception {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        when( upstream.getTile( anyString(), anyString(), anyLong(), anyLong() ) ).thenAnswer( new Answer<Tile>() {
+            @Override
+            public Tile answer( InvocationOnMock invocation )
+                                    throws InterruptedException {
+                release.await();
+                return null;
+            }
+        } );
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 1.0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ), 50 );
+        try {
+            assertNull( connector.resolv( "0", 1, 2 ) );
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testResolvAsyncTreatsSlowUpstreamAsMissing()
+                            throws Exception {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        when( upstream.getTile( anyString(), anyString(), anyLong(), anyLong() ) ).thenAnswer( new Answer<Tile>() {
+            @Override
+            public Tile answer( InvocationOnMock invocation )
+                                    throws InterruptedException {
+                release.await();
+                return null;
+            }
+        } );
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 1.0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ), 50 );
+        try {
+            assertNull( connector.resolvAsync( "0", 1, 2 ).get() );
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testCancellingRequestKeepsSharedUpstreamFetch()
+                            throws Exception {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Tile tile = tile( IMAGE );
+        when( upstream.getTile( anyString(), anyString(), anyLong(), anyLong() ) ).thenAnswer( new Answer<Tile>() {
+            @Override
+            public Tile answer( InvocationOnMock invocation )
+                                    throws InterruptedException {
+                release.await();
+                return tile;
+            }
+        } );
+        // missing synchronously, so both requests have joined the upstream fetch when cancelling
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 1.0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) {
+            @Override
+            protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+                return Futures.immediateFuture( null );
+            }
+        }, 5000 );
+        ListenableFuture<ByteBuffer> cancelled = connector.resolvAsync( "0", 1, 2 );
+        ListenableFuture<ByteBuffer> kept = connector.resolvAsync( "0", 1, 2 );
+
+        cancelled.cancel( false );
+        release.countDown();
+
+        assertArrayEquals( IMAGE, toArray( kept.get() ) );
+        verify( upstream, times( 1 ) ).getTile( "upstream", "0", 1, 2 );
+    }
+
+    @Test
+    public void testFailingWriteBackIsRecordedByCircuitBreaker() {
+        Tile tile = tile( IMAGE );
+        when( upstream.getTile( "upstream", "0", 1, 2 ) ).thenReturn( tile );
+        SimulatedCassandraDB failingWrites = new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 1.0,
+                                                                       constantLatency( 0 ), failures( 0, 0, 0 ), 1 ) {
+            @Override
+            public ListenableFuture<ResultSet> putRowAsync( String key, String columnFamily, ByteBuffer img ) {
+                return Futures.immediateFailedFuture( new TileIOException( "Write failed." ) );
+            }
+        };
+        CircuitBreaker breaker = new CircuitBreaker( 0.5, 1000, 1.0, 10, 2, 60000, 1 );
+        failingWrites.setCircuitBreaker( breaker );
+        createConnector( failingWrites, 1000 );
+
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 1, 2 ) ) );
+
+        assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+    }
+
+    @Test
+    public void testWarmUpLoadsTilesIntoLocalCache()
+                            throws InterruptedException {
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 1 ),
+                                                   failures( 0, 0, 0 ), 1 ) );
+        connector.setLocalCache( new LocalTileCache( 1000, 60000 ) );
+
+        connector.warmUp( asList( new HotTile( "0", 1, 2, 10 ), new HotTile( "0", 3, 3, 5 ),
+                                  new HotTile( "unknown", 0, 0, 1 ) ) );
+
+        assertEquals( 2, db.getReads() );
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 1, 2 ) ) );
+        assertArrayEquals( IMAGE, toArray( connector.resolv( "0", 3, 3 ) ) );
+        assertEquals( 2, db.getReads() );
+    }
+
+    @Test
+    public void testParseRowKeyInvertsRowIndex() {
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) );
+
+        assertArrayEquals( new long[] { 0, 1, 2 }, connector.parseRowKey( "png|00|000|000|001|000|000|001" ) );
+        assertArrayEquals( new long[] { 0, 3, 0 }, connector.parseRowKey( "png|00|000|000|003|000|000|003" ) );
+    }
+
+    @Test
+    public void testParseRowKeyOfStoredTile()
+                            throws InterruptedException {
+        createConnector( new SimulatedCassandraDB( null, 1, constantLatency( 0 ), failures( 0, 0, 0 ), 1 ) );
+
+        connector.store( "0", 3, 1, ByteBuffer.wrap( IMAGE ) );
+
+        waitForRow( "png|00|000|000|003|000|000|002" );
+        assertArrayEquals( new long[] { 0, 3, 1 }, connector.parseRowKey( "png|00|000|000|003|000|000|002" ) );
+    }
+
+    @Test
+    public void testParseRowKeyRejectsForeignKeys() {
+        createConnector( new SimulatedCassandraDB( ByteBuffer.wrap( IMAGE ), 0, constantLatency( 0 ),
+                                                   failures( 0, 0, 0 ), 1 ) );
+
+        assertParseFails( "jpeg|00|000|000|001|000|000|001" );
+        assertParseFails( "png|01|000|000|001|000|000|001" );
+        assertParseFails( "png|00|000|001|000|000|001" );
+        assertParseFails( "png|00|000|000|00a|000|000|001" );
+        assertParseFails( "some other key" );
+    }
+
+    private void createConnector( SimulatedCassandraDB db, long timeout ) {
+        createConnector( db );
+        connector.setReadThroughLoader( new ReadThroughLoader( upstream, "upstream", 1, 1, true, timeout ) );
+    }
+
+    private void createConnector( SimulatedCassandraDB db ) {
+        this.db = db;
+        TileMatrix matrix = new TileMatrix( "0", new SpatialMetadata( new GeometryFactory().createEnvelope( 0, 0,
+                                                                                                             1024,
+                                                                                                             1024,
+                                                                                                             null ),
+                                                                      Collections.<ICRS> emptyList() ), 256, 256,
+                                            1.0, 4, 4 );
+        TileDataLevel level = mock( TileDataLevel.class );
+        when( level.getMetadata() ).thenReturn( matrix );
+        TileDataSet tds = mock( TileDataSet.class );
+        when( tds.getTileDataLevel( "0" ) ).thenReturn( level );
+        when( tds.getTileDataLevels() ).thenReturn( singletonList( level ) );
+        when( tds.getNativeImageFormat() ).thenReturn( "image/png" );
+
+        connector = new CassandraConnector( db, "tiles" );
+        connector.setTileDataSet( tds );
+    }
+
+    private void waitForRow( String rowKey )
+                            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ( db.getTileImage( rowKey, "tiles" ) == null ) {
+            if ( System.currentTimeMillis() > deadline ) {
+                fail( "Tile " + rowKey + " was not written back." );
+            }
+            Thread.sleep( 10 );
+        }
+    }
+
+    private void assertParseFails( String rowKey ) {
+        try {
+            connector.parseRowKey( rowKey );
+            fail( "Row key " + rowKey + " was parsed." );
+        } catch ( IllegalArgumentException e ) {
+            // expected
+        }
+    }
+
+    private static Tile tile( byte[] image ) {
+        Tile tile = mock( Tile.class );
+        when( tile.getAsStream() ).thenReturn( new ByteArrayInputStream( image ) );
+        return tile;
+    }
+
+    private static byte[] toArray( ByteBuffer buffer ) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+        return bytes;
+    }
+
+}
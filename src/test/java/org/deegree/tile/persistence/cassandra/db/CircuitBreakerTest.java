@@ -0,0 +1,251 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.deegree.tile.persistence.cassandra.db.CircuitBreaker.State.CLOSED;
+import static org.deegree.tile.persistence.cassandra.db.CircuitBreaker.State.HALF_OPEN;
+import static org.deegree.tile.persistence.cassandra.db.CircuitBreaker.State.OPEN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class CircuitBreakerTest {
+
+    private static final long FAST = 1000000L;
+
+    private static final long SLOW = 2000000000L;
+
+    @Test
+    public void testStaysClosedBelowMinimumCalls() {
+        CircuitBreaker breaker = new CircuitBreaker( 0.5, 1000, 0.8, 10, 5, 60000, 1 );
+
+        for ( int i = 0; i < 4; i++ ) {
+            recordFailure( breaker );
+        }
+
+        assertEquals( CLOSED, breaker.getState() );
+    }
+
+    @Test
+    public void testOpensAtFailureRateThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker( 0.5, 1000, 0.8, 10, 4, 60000, 1 );
+
+        recordSuccess( breaker, FAST );
+        recordSuccess( breaker, FAST );
+        recordFailure( breaker );
+        assertEquals( CLOSED, breaker.getState() );
+        recordFailure( breaker );
+
+        assertEquals( OPEN, breaker.getState() );
+        assertFalse( breaker.allowRequest() );
+    }
+
+    @Test
+    public void testOpensAtSlowCallRateThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker( 0.5, 1000, 0.5, 10, 2, 60000, 1 );
+
+        recordSuccess( breaker, SLOW );
+        assertEquals( CLOSED, breaker.getState() );
+        recordSuccess( breaker, SLOW );
+
+        assertEquals( OPEN, breaker.getState() );
+    }
+
+    @Test
+    public void testOnlyRecentCallsCount() {
+        CircuitBreaker breaker = new CircuitBreaker( 1.0, 1000, 1.0, 2, 2, 60000, 1 );
+
+        recordFailure( breaker );
+        recordSuccess( breaker, FAST );
+        recordSuccess( breaker, FAST );
+        recordFailure( breaker );
+        assertEquals( CLOSED, breaker.getState() );
+        recordFailure( breaker );
+
+        assertEquals( OPEN, breaker.getState() );
+    }
+
+    @Test
+    public void testHalfOpenAfterOpenDuration() {
+        CircuitBreaker breaker = openBreaker( 0, 2 );
+
+        assertTrue( breaker.allowRequest() );
+        assertEquals( HALF_OPEN, breaker.getState() );
+        assertTrue( breaker.allowRequest() );
+        assertFalse( breaker.allowRequest() );
+    }
+
+    @Test
+    public void testClosesAfterSuccessfulTrials() {
+        CircuitBreaker breaker = openBreaker( 0, 2 );
+
+        recordSuccess( breaker, FAST );
+        assertEquals( HALF_OPEN, breaker.getState() );
+        recordSuccess( breaker, FAST );
+
+        assertEquals( CLOSED, breaker.getState() );
+        assertTrue( breaker.allowRequest() );
+    }
+
+    @Test
+    public void testReopensAfterFailedTrial() {
+        CircuitBreaker breaker = openBreaker( 0, 2 );
+
+        assertTrue( breaker.allowRequest() );
+        breaker.onFailure( System.nanoTime() );
+
+        assertEquals( OPEN, breaker.getState() );
+    }
+
+    @Test
+    public void testReopensAfterSlowTrial() {
+        CircuitBreaker breaker = openBreaker( 0, 2 );
+
+        assertTrue( breaker.allowRequest() );
+        breaker.onSuccess( System.nanoTime(), SLOW );
+
+        assertEquals( OPEN, breaker.getState() );
+    }
+
+    @Test
+    public void testIgnoresSuccessOfCallStartedBeforeHalfOpen() {
+        long earlyStart = System.nanoTime();
+        CircuitBreaker breaker = openBreaker( 0, 1 );
+        assertTrue( breaker.allowRequest() );
+        long trialStart = System.nanoTime();
+
+        breaker.onSuccess( earlyStart, FAST );
+        assertEquals( HALF_OPEN, breaker.getState() );
+        breaker.onSuccess( trialStart, FAST );
+
+        assertEquals( CLOSED, breaker.getState() );
+    }
+
+    @Test
+    public void testIgnoresFailureOfCallStartedBeforeHalfOpen() {
+        long earlyStart = System.nanoTime();
+        CircuitBreaker breaker = openBreaker( 0, 1 );
+        assertTrue( breaker.allowRequest() );
+
+        breaker.onFailure( earlyStart );
+        breaker.onCancelled( earlyStart );
+
+        assertEquals( HALF_OPEN, breaker.getState() );
+        assertFalse( breaker.allowRequest() );
+    }
+
+    @Test
+    public void testCancelledTrialIsReplaced() {
+        CircuitBreaker breaker = openBreaker( 0, 1 );
+
+        assertTrue( breaker.allowRequest() );
+        assertFalse( breaker.allowRequest() );
+        breaker.onCancelled( System.nanoTime() );
+
+        assertEquals( HALF_OPEN, breaker.getState() );
+        recordSuccess( breaker, FAST );
+        assertEquals( CLOSED, breaker.getState() );
+    }
+
+    @Test
+    public void testCancelledCallIsNotRecorded() {
+        CircuitBreaker breaker = new CircuitBreaker( 0.5, 1000, 0.8, 10, 2, 60000, 1 );
+
+        recordFailure( breaker );
+        assertTrue( breaker.allowRequest() );
+        breaker.onCancelled( System.nanoTime() );
+
+        assertEquals( CLOSED, breaker.getState() );
+    }
+
+    @Test
+    public void testIgnoresLateResultsWhileOpen() {
+        CircuitBreaker breaker = openBreaker( 60000, 1 );
+
+        breaker.onSuccess( System.nanoTime(), FAST );
+        breaker.onSuccess( System.nanoTime(), FAST );
+
+        assertEquals( OPEN, breaker.getState() );
+        assertFalse( breaker.allowRequest() );
+    }
+
+    @Test
+    public void testClosedBreakerForgetsFailuresBeforeOpening() {
+        CircuitBreaker breaker = openBreaker( 0, 1 );
+        recordSuccess( breaker, FAST );
+        assertEquals( CLOSED, breaker.getState() );
+
+        recordFailure( breaker );
+
+        assertEquals( CLOSED, breaker.getState() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsEmptyWindow() {
+        new CircuitBreaker( 0.5, 1000, 0.8, 0, 1, 60000, 1 );
+    }
+
+    private static CircuitBreaker openBreaker( long openDurationMillis, int halfOpenTrials ) {
+        CircuitBreaker breaker = new CircuitBreaker( 0.5, 1000, 0.8, 10, 2, openDurationMillis, halfOpenTrials );
+        recordFailure( breaker );
+        recordFailure( breaker );
+        assertEquals( OPEN, breaker.getState() );
+        return breaker;
+    }
+
+    private static void recordSuccess( CircuitBreaker breaker, long latencyNanos ) {
+        assertTrue( breaker.allowRequest() );
+        breaker.onSuccess( System.nanoTime(), latencyNanos );
+    }
+
+    private static void recordFailure( CircuitBreaker breaker ) {
+        assertTrue( breaker.allowRequest() );
+        breaker.onFailure( System.nanoTime() );
+    }
+
+}
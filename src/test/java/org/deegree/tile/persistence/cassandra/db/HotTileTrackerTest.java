@@ -0,0 +1,169 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.deegree.tile.persistence.cassandra.db.HotTileTracker.HotTile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link HotTileTracker}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class HotTileTrackerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKeepsHottestTilesPerLevel() {
+        HotTileTracker tracker = new HotTileTracker( 2, 1024, null );
+        record( tracker, "0", 1, 1, 10 );
+        record( tracker, "0", 2, 2, 5 );
+        record( tracker, "0", 3, 3, 1 );
+        record( tracker, "1", 1, 1, 7 );
+
+        assertArrayEquals( new String[] { "0,1,1,10", "1,1,1,7", "0,2,2,5" }, tracker.getHotTiles() );
+        assertEquals( 23, tracker.getRequestCount() );
+    }
+
+    @Test
+    public void testFindsHeavyHittersAmongManyTiles() {
+        HotTileTracker tracker = new HotTileTracker( 3, 64, null );
+        for ( int i = 0; i < 1000; i++ ) {
+            tracker.record( "0", i, i % 7 );
+            if ( i % 5 == 0 ) {
+                tracker.record( "0", 2000, 1 );
+                tracker.record( "0", 2001, 2 );
+                tracker.record( "0", 2002, 3 );
+            }
+        }
+
+        List<HotTile> top = tracker.getTopTiles();
+        Set<Long> columns = new HashSet<Long>();
+        for ( HotTile tile : top ) {
+            columns.add( tile.getX() );
+            // count-min sketches never underestimate
+            assertTrue( tile.getCount() >= 200 );
+        }
+        assertEquals( new HashSet<Long>( asList( 2000L, 2001L, 2002L ) ), columns );
+    }
+
+    @Test
+    public void testRunHalvesCounts() {
+        HotTileTracker tracker = new HotTileTracker( 2, 1024, null );
+        record( tracker, "0", 1, 1, 10 );
+        tracker.run();
+        record( tracker, "0", 2, 2, 6 );
+
+        assertArrayEquals( new String[] { "0,2,2,6", "0,1,1,5" }, tracker.getHotTiles() );
+    }
+
+    @Test
+    public void testReset() {
+        HotTileTracker tracker = new HotTileTracker( 2, 1024, null );
+        record( tracker, "0", 1, 1, 10 );
+        tracker.reset();
+
+        assertEquals( 0, tracker.getHotTiles().length );
+        assertEquals( 0, tracker.getRequestCount() );
+    }
+
+    @Test
+    public void testSnapshotRoundTrip()
+                            throws IOException {
+        File snapshot = new File( folder.getRoot(), "hot-tiles.csv" );
+        HotTileTracker tracker = new HotTileTracker( 2, 1024, snapshot );
+        record( tracker, "EPSG:4326,0", 3, 4, 2 );
+        record( tracker, "1", 5, 6, 1 );
+        tracker.run();
+        // overwrites the previous snapshot
+        tracker.run();
+
+        List<HotTile> tiles = HotTileTracker.readSnapshot( snapshot );
+        assertEquals( 2, tiles.size() );
+        assertEquals( "EPSG:4326,0", tiles.get( 0 ).getLevelId() );
+        assertEquals( 3, tiles.get( 0 ).getX() );
+        assertEquals( 4, tiles.get( 0 ).getY() );
+        assertEquals( 1, tiles.get( 0 ).getCount() );
+        assertEquals( "1,5,6,0", tiles.get( 1 ).toString() );
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMalformedSnapshot()
+                            throws IOException {
+        File snapshot = folder.newFile( "hot-tiles.csv" );
+        FileUtils.writeStringToFile( snapshot, "0,1,1,10\n0,1,x,10\n", "UTF-8" );
+
+        HotTileTracker.readSnapshot( snapshot );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroWidth() {
+        new HotTileTracker( 2, 0, null );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroTopK() {
+        new HotTileTracker( 0, 1024, null );
+    }
+
+    private static void record( HotTileTracker tracker, String levelId, long x, long y, int requests ) {
+        for ( int i = 0; i < requests; i++ ) {
+            tracker.record( levelId, x, y );
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.mockito.Mockito.mock;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * {@link CassandraDB} keeping the rows of all column families in memory, supports token range scans over the columns
+ * <code>key</code>, <code>img</code>, <code>tileTimestamp</code> and <code>WRITETIME(img)</code>. Keys are hashed onto
+ * the token ring of the Murmur3 partitioner.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class InMemoryCassandraDB extends CassandraDB {
+
+    private final Map<String, StoredRow> rows = new ConcurrentHashMap<String, StoredRow>();
+
+    /**
+     * Stores a row.
+     * 
+     * @param columnFamily
+     *            column family of the row, must not be <code>null</code>
+     * @param key
+     *            key of the row, must not be <code>null</code>
+     * @param img
+     *            image of the tile, <code>null</code> for a row without image
+     * @param tileTimestamp
+     *            last access in milliseconds, may be <code>null</code>
+     * @param writeTime
+     *            write time of the image in milliseconds
+     */
+    public void addRow( String columnFamily, String key, ByteBuffer img, Long tileTimestamp, long writeTime ) {
+        rows.put( columnFamily + getSeparatorChar() + key, new StoredRow( key, img, tileTimestamp,
+                                                                           img != null ? writeTime * 1000 : null ) );
+    }
+
+    /**
+     * @param columnFamily
+     *            column family of the row, must not be <code>null</code>
+     * @param key
+     *            key of the row, must not be <code>null</code>
+     * @return <code>true</code> if the row exists
+     */
+    public boolean hasRow( String columnFamily, String key ) {
+        return rows.containsKey( columnFamily + getSeparatorChar() + key );
+    }
+
+    /**
+     * @param columnFamily
+     *            column family of the rows, must not be <code>null</code>
+     * @return keys of all rows of the column family, never <code>null</code>
+     */
+    public Set<String> getKeys( String columnFamily ) {
+        Set<String> keys = new TreeSet<String>();
+        String prefix = columnFamily + getSeparatorChar();
+        for ( String key : rows.keySet() ) {
+            if ( key.startsWith( prefix ) ) {
+                keys.add( key.substring( prefix.length() ) );
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return number of rows of all column families
+     */
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    protected ByteBuffer fetchTileImage( String key, String columnFamily ) {
+        StoredRow row = rows.get( columnFamily + getSeparatorChar() + key );
+        return row != null && row.img != null ? row.img.duplicate() : null;
+    }
+
+    @Override
+    protected ListenableFuture<ByteBuffer> fetchTileImageAsync( String key, String columnFamily ) {
+        return Futures.immediateFuture( fetchTileImage( key, columnFamily ) );
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> putRowAsync( String key, String columnFamily, ByteBuffer img ) {
+        addRow( columnFamily, key, img.duplicate(), null, System.currentTimeMillis() );
+        return Futures.immediateFuture( null );
+    }
+
+    @Override
+    public void deleteRow( String key, String columnFamily ) {
+        rows.remove( columnFamily + getSeparatorChar() + key );
+    }
+
+    @Override
+    public BigInteger[] getTokenRing() {
+        return new BigInteger[] { BigInteger.valueOf( Long.MIN_VALUE ), BigInteger.valueOf( Long.MAX_VALUE ) };
+    }
+
+    @Override
+    public Iterable<Row> scanTokenRange( String columnFamily, String columns, BigInteger firstToken,
+                                         BigInteger lastToken, int fetchSize ) {
+        String[] selected = columns.split( ",\\s*" );
+        List<StoredRow> range = new ArrayList<StoredRow>();
+        String prefix = columnFamily + getSeparatorChar();
+        for ( Map.Entry<String, StoredRow> entry : rows.entrySet() ) {
+            BigInteger token = entry.getValue().token;
+            if ( entry.getKey().startsWith( prefix ) && token.compareTo( firstToken ) >= 0
+                 && token.compareTo( lastToken ) <= 0 ) {
+                range.add( entry.getValue() );
+            }
+        }
+        Collections.sort( range, new Comparator<StoredRow>() {
+            @Override
+            public int compare( StoredRow r1, StoredRow r2 ) {
+                return r1.token.compareTo( r2.token );
+            }
+        } );
+        List<Row> result = new ArrayList<Row>( range.size() );
+        for ( StoredRow row : range ) {
+            result.add( row.select( selected ) );
+        }
+        return result;
+    }
+
+    private static class StoredRow {
+
+        private final String key;
+
+        private final ByteBuffer img;
+
+        private final Long tileTimestamp;
+
+        private final Long writeTimeMicros;
+
+        private final BigInteger token;
+
+        private StoredRow( String key, ByteBuffer img, Long tileTimestamp, Long writeTimeMicros ) {
+            this.key = key;
+            this.img = img;
+            this.tileTimestamp = tileTimestamp;
+            this.writeTimeMicros = writeTimeMicros;
+            // spreads the keys over the whole ring
+            this.token = BigInteger.valueOf( (long) key.hashCode() << 32 );
+        }
+
+        private Row select( String[] columns ) {
+            final Object[] values = new Object[columns.length];
+            for ( int i = 0; i < columns.length; i++ ) {
+                if ( "key".equals( columns[i] ) ) {
+                    values[i] = key;
+                } else if ( "img".equals( columns[i] ) ) {
+                    values[i] = img != null ? img.duplicate() : null;
+                } else if ( "tileTimestamp".equals( columns[i] ) ) {
+                    values[i] = tileTimestamp;
+                } else if ( "WRITETIME(img)".equals( columns[i] ) ) {
+                    values[i] = writeTimeMicros;
+                } else {
+                    throw new IllegalArgumentException( "Unsupported column " + columns[i] );
+                }
+            }
+            return mock( Row.class, new Answer<Object>() {
+                @Override
+                public Object answer( InvocationOnMock invocation ) {
+                    Object value = values[(Integer) invocation.getArguments()[0]];
+                    String method = invocation.getMethod().getName();
+                    if ( "isNull".equals( method ) ) {
+                        return value == null;
+                    }
+                    if ( "getLong".equals( method ) ) {
+                        // the driver returns 0 for null values
+                        return value != null ? value : 0L;
+                    }
+                    return value;
+                }
+            } );
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LocalTileCache}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class LocalTileCacheTest {
+
+    @Test
+    public void testGetFreshEntry() {
+        LocalTileCache cache = new LocalTileCache( 100, 60000 );
+        cache.put( "a", image( 10 ) );
+
+        LocalTileCache.Entry entry = cache.get( "a" );
+
+        assertTrue( entry.isFresh() );
+        assertEquals( 10, entry.getImage().remaining() );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 0, cache.getMisses() );
+    }
+
+    @Test
+    public void testGetStaleEntry() {
+        LocalTileCache cache = new LocalTileCache( 100, 0 );
+        cache.put( "a", image( 10 ) );
+
+        LocalTileCache.Entry entry = cache.get( "a" );
+
+        assertNotNull( entry );
+        assertFalse( entry.isFresh() );
+        assertEquals( 0, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    @Test
+    public void testGetMissingEntry() {
+        LocalTileCache cache = new LocalTileCache( 100, 60000 );
+
+        assertNull( cache.get( "a" ) );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LocalTileCache cache = new LocalTileCache( 30, 60000 );
+        cache.put( "a", image( 10 ) );
+        cache.put( "b", image( 10 ) );
+        cache.put( "c", image( 10 ) );
+        cache.get( "a" );
+
+        cache.put( "d", image( 10 ) );
+
+        assertNotNull( cache.get( "a" ) );
+        assertNull( cache.get( "b" ) );
+        assertNotNull( cache.get( "c" ) );
+        assertNotNull( cache.get( "d" ) );
+    }
+
+    @Test
+    public void testReplaceFreesOldEntry() {
+        LocalTileCache cache = new LocalTileCache( 30, 60000 );
+        cache.put( "a", image( 10 ) );
+        cache.put( "b", image( 10 ) );
+        cache.put( "a", image( 20 ) );
+
+        assertEquals( 20, cache.get( "a" ).getImage().remaining() );
+        assertNotNull( cache.get( "b" ) );
+    }
+
+    @Test
+    public void testSkipsImagesLargerThanCache() {
+        LocalTileCache cache = new LocalTileCache( 30, 60000 );
+        cache.put( "a", image( 10 ) );
+
+        cache.put( "b", image( 31 ) );
+
+        assertNull( cache.get( "b" ) );
+        assertNotNull( cache.get( "a" ) );
+    }
+
+    @Test
+    public void testInvalidate() {
+        LocalTileCache cache = new LocalTileCache( 20, 60000 );
+        cache.put( "a", image( 10 ) );
+        cache.put( "b", image( 10 ) );
+
+        cache.invalidate( "a" );
+        cache.put( "c", image( 10 ) );
+
+        assertNull( cache.get( "a" ) );
+        assertNotNull( cache.get( "b" ) );
+        assertNotNull( cache.get( "c" ) );
+    }
+
+    @Test
+    public void testImageIsNotShared() {
+        LocalTileCache cache = new LocalTileCache( 100, 60000 );
+        ByteBuffer image = image( 10 );
+        cache.put( "a", image );
+
+        image.position( 10 );
+        cache.get( "a" ).getImage().position( 5 );
+
+        assertEquals( 10, cache.get( "a" ).getImage().remaining() );
+    }
+
+    private static ByteBuffer image( int size ) {
+        return ByteBuffer.wrap( new byte[size] );
+    }
+
+}
@@ -0,0 +1,292 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+import org.deegree.tile.persistence.TileStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for {@link ReadThroughLoader} fetching from a mocked upstream {@link TileStore}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class ReadThroughLoaderTest {
+
+    private static final byte[] IMAGE = { 1, 2, 3, 4 };
+
+    private TileStore upstream;
+
+    private ReadThroughLoader loader;
+
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        upstream = mock( TileStore.class );
+        TileDataSet dataSet = mock( TileDataSet.class );
+        when( dataSet.getNativeImageFormat() ).thenReturn( "image/png" );
+        when( upstream.getTileDataSet( "upstream" ) ).thenReturn( dataSet );
+        loader = new ReadThroughLoader( upstream, "upstream", 1, 1, true, 1000 );
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() {
+        loader.destroy();
+    }
+
+    @Test
+    public void testLoadReturnsUpstreamTile()
+                            throws Exception {
+        Tile tile = tile( IMAGE );
+        when( upstream.getTile( "upstream", "0", 1, 2 ) ).thenReturn( tile );
+
+        ByteBuffer image = loader.load( "key", "0", 1, 2, "image/png", listener ).get();
+
+        assertArrayEquals( IMAGE, toArray( image ) );
+        assertEquals( 1, listener.loaded.get() );
+    }
+
+    @Test
+    public void testLoadMissingUpstreamTile()
+                            throws Exception {
+        ByteBuffer image = loader.load( "key", "0", 1, 2, "image/png", listener ).get();
+
+        assertNull( image );
+        assertEquals( 0, listener.loaded.get() );
+    }
+
+    @Test
+    public void testLoadConvertsToNativeFormat()
+                            throws Exception {
+        Tile tile = mock( Tile.class );
+        when( tile.getAsImage() ).thenReturn( new BufferedImage( 4, 4, BufferedImage.TYPE_INT_ARGB ) );
+        when( upstream.getTile( "upstream", "0", 1, 2 ) ).thenReturn( tile );
+
+        ByteBuffer image = loader.load( "key", "0", 1, 2, "image/jpeg", listener ).get();
+
+        ImageInputStream in = ImageIO.createImageInputStream( new ByteArrayInputStream( toArray( image ) ) );
+        assertEquals( "jpeg", ImageIO.getImageReaders( in ).next().getFormatName().toLowerCase() );
+        assertEquals( 4, ImageIO.read( in ).getWidth() );
+    }
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced()
+                            throws Exception {
+        CountDownLatch release = blockUpstream( IMAGE );
+
+        ListenableFuture<ByteBuffer> first = loader.load( "key", "0", 1, 2, "image/png", listener );
+        ListenableFuture<ByteBuffer> second = loader.load( "key", "0", 1, 2, "image/png", listener );
+        release.countDown();
+
+        assertSame( first, second );
+        assertArrayEquals( IMAGE, toArray( second.get() ) );
+        verify( upstream, times( 1 ) ).getTile( anyString(), anyString(), anyLong(), anyLong() );
+        assertEquals( 1, listener.loaded.get() );
+    }
+
+    @Test
+    public void testLoadAfterCompletionFetchesAgain()
+                            throws Exception {
+        Tile tile = tile( IMAGE );
+        when( upstream.getTile( "upstream", "0", 1, 2 ) ).thenReturn( tile );
+
+        loader.load( "key", "0", 1, 2, "image/png", listener ).get();
+        loader.load( "key", "0", 1, 2, "image/png", listener ).get();
+
+        verify( upstream, times( 2 ) ).getTile( "upstream", "0", 1, 2 );
+    }
+
+    @Test
+    public void testUpstreamFailureFailsLoad()
+                            throws Exception {
+        when( upstream.getTile( "upstream", "0", 1, 2 ) ).thenThrow( new TileIOException( "upstream down" ) );
+
+        assertFailsWithTileIOException( loader.load( "key", "0", 1, 2, "image/png", listener ) );
+        assertEquals( 0, listener.loaded.get() );
+    }
+
+    @Test
+    public void testDestroyFailsPendingLoads()
+                            throws Exception {
+        blockUpstream( IMAGE );
+        ListenableFuture<ByteBuffer> running = loader.load( "running", "0", 1, 2, "image/png", listener );
+        ListenableFuture<ByteBuffer> queued = loader.load( "queued", "0", 3, 4, "image/png", listener );
+
+        loader.destroy();
+
+        assertFailsWithTileIOException( running );
+        assertFailsWithTileIOException( queued );
+    }
+
+    @Test
+    public void testLoadFailsIfQueueIsFull()
+                            throws Exception {
+        CountDownLatch release = blockUpstream( IMAGE );
+        try {
+            ListenableFuture<ByteBuffer> running = loader.load( "running", "0", 1, 2, "image/png", listener );
+            ListenableFuture<ByteBuffer> queued = loader.load( "queued", "0", 3, 4, "image/png", listener );
+
+            assertFailsWithTileIOException( loader.load( "rejected", "0", 5, 6, "image/png", listener ) );
+            release.countDown();
+            assertNotNull( running.get() );
+            assertNotNull( queued.get() );
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testSlowLoadFailsAfterTimeout()
+                            throws Exception {
+        loader.destroy();
+        loader = new ReadThroughLoader( upstream, "upstream", 1, 1, true, 50 );
+        CountDownLatch release = blockUpstream( IMAGE );
+        try {
+            ListenableFuture<ByteBuffer> slow = loader.load( "key", "0", 1, 2, "image/png", listener );
+
+            try {
+                slow.get( 5, TimeUnit.SECONDS );
+                fail( "Load should have timed out." );
+            } catch ( ExecutionException e ) {
+                assertTrue( e.getCause() instanceof TimeoutException );
+            }
+            assertNotSame( slow, loader.load( "key", "0", 1, 2, "image/png", listener ) );
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testLoadAfterDestroyFails()
+                            throws Exception {
+        loader.destroy();
+
+        assertFailsWithTileIOException( loader.load( "key", "0", 1, 2, "image/png", listener ) );
+    }
+
+    private CountDownLatch blockUpstream( byte[] image )
+                            throws IOException {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Tile tile = tile( image );
+        when( upstream.getTile( anyString(), anyString(), anyLong(), anyLong() ) ).thenAnswer( new Answer<Tile>() {
+            @Override
+            public Tile answer( InvocationOnMock invocation )
+                                    throws InterruptedException {
+                release.await();
+                return tile;
+            }
+        } );
+        return release;
+    }
+
+    private static Tile tile( byte[] image ) {
+        Tile tile = mock( Tile.class );
+        when( tile.getAsStream() ).thenReturn( new ByteArrayInputStream( image ) );
+        return tile;
+    }
+
+    private static void assertFailsWithTileIOException( ListenableFuture<ByteBuffer> future )
+                            throws InterruptedException {
+        try {
+            future.get( 5, TimeUnit.SECONDS );
+            fail( "Load should have failed." );
+        } catch ( ExecutionException e ) {
+            assertTrue( e.getCause() instanceof TileIOException );
+        } catch ( TimeoutException e ) {
+            fail( "Load is still pending." );
+        }
+    }
+
+    private static byte[] toArray( ByteBuffer buffer ) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get( bytes );
+        return bytes;
+    }
+
+    private static class RecordingListener implements ReadThroughLoader.LoadListener {
+
+        private final AtomicInteger loaded = new AtomicInteger();
+
+        @Override
+        public void loaded( String key, ByteBuffer image ) {
+            loaded.incrementAndGet();
+        }
+    }
+
+}
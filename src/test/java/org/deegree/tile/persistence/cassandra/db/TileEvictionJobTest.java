@@ -0,0 +1,210 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileMatrix;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TileEvictionJob}, using an {@link InMemoryCassandraDB} with the levels "0" (2x2 tiles) and "1" (4x4
+ * tiles).
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileEvictionJobTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final ByteBuffer IMAGE = ByteBuffer.wrap( new byte[] { 1, 2, 3 } );
+
+    private static final String LEVEL_0_TILE = "png|00|000|000|000|000|000|000";
+
+    private static final String RECENT_TILE = "png|01|000|000|000|000|000|000";
+
+    private static final String OLD_TILE = "png|01|000|000|001|000|000|000";
+
+    private static final String OLDER_TILE = "png|01|000|000|002|000|000|000";
+
+    private static final String FOREIGN_KEY = "jpeg|01|000|000|003|000|000|000";
+
+    private InMemoryCassandraDB db;
+
+    private CassandraConnector connector;
+
+    private long now;
+
+    @Before
+    public void setUp() {
+        db = new InMemoryCassandraDB();
+        TileDataLevel level0 = level( "0", 2 );
+        TileDataLevel level1 = level( "1", 4 );
+        TileDataSet tds = mock( TileDataSet.class );
+        when( tds.getTileDataLevel( "0" ) ).thenReturn( level0 );
+        when( tds.getTileDataLevel( "1" ) ).thenReturn( level1 );
+        when( tds.getTileDataLevels() ).thenReturn( asList( level0, level1 ) );
+        when( tds.getNativeImageFormat() ).thenReturn( "image/png" );
+        connector = new CassandraConnector( db, "tiles" );
+        connector.setTileDataSet( tds );
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void testEvictsTilesBeyondHorizon() {
+        db.addRow( "tiles", LEVEL_0_TILE, IMAGE, now - 10 * HOUR, now - 10 * HOUR );
+        db.addRow( "tiles", RECENT_TILE, IMAGE, now, now - 10 * HOUR );
+        db.addRow( "tiles", OLD_TILE, IMAGE, now - 10 * HOUR, now - 10 * HOUR );
+        db.addRow( "tiles", FOREIGN_KEY, IMAGE, now - 10 * HOUR, now - 10 * HOUR );
+
+        new TileEvictionJob( connector, 5 * HOUR, -1, 1, 2, 10000, 10000 ).run();
+
+        assertEquals( new HashSet<String>( asList( LEVEL_0_TILE, RECENT_TILE, FOREIGN_KEY ) ), db.getKeys( "tiles" ) );
+    }
+
+    @Test
+    public void testUsesWriteTimeOfTilesNeverAccessed() {
+        db.addRow( "tiles", RECENT_TILE, IMAGE, null, now );
+        db.addRow( "tiles", OLD_TILE, IMAGE, null, now - 10 * HOUR );
+
+        new TileEvictionJob( connector, 5 * HOUR, -1, 0, 2, 10000, 10000 ).run();
+
+        assertEquals( Collections.singleton( RECENT_TILE ), db.getKeys( "tiles" ) );
+    }
+
+    @Test
+    public void testEvictsZombieRows() {
+        db.addRow( "tiles", RECENT_TILE, IMAGE, now, now );
+        db.addRow( "tiles", OLD_TILE, null, now, now );
+        db.addRow( "tiles", LEVEL_0_TILE, null, now, now );
+
+        new TileEvictionJob( connector, 5 * HOUR, -1, 1, 2, 10000, 10000 ).run();
+
+        assertEquals( Collections.singleton( RECENT_TILE ), db.getKeys( "tiles" ) );
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyAccessedTilesBeyondBudget() {
+        db.addRow( "tiles", LEVEL_0_TILE, IMAGE, now - 10 * HOUR, now - 10 * HOUR );
+        db.addRow( "tiles", RECENT_TILE, IMAGE, now, now );
+        db.addRow( "tiles", OLD_TILE, IMAGE, now - 3 * HOUR, now - 3 * HOUR );
+        db.addRow( "tiles", OLDER_TILE, IMAGE, now - 6 * HOUR, now - 6 * HOUR );
+        db.addRow( "tiles", FOREIGN_KEY, IMAGE, now - 10 * HOUR, now - 10 * HOUR );
+
+        // the protected level 0 tile and the foreign row take two tiles of the budget
+        new TileEvictionJob( connector, -1, 4, 1, 2, 10000, 10000 ).run();
+
+        assertEquals( new HashSet<String>( asList( LEVEL_0_TILE, RECENT_TILE, OLD_TILE, FOREIGN_KEY ) ),
+                      db.getKeys( "tiles" ) );
+    }
+
+    @Test
+    public void testEvictsOnlyOverflowOfSameHour() {
+        long hour = ( now / HOUR - 1 ) * HOUR;
+        db.addRow( "tiles", RECENT_TILE, IMAGE, hour + 3000, hour + 3000 );
+        db.addRow( "tiles", OLD_TILE, IMAGE, hour + 1000, hour + 1000 );
+        db.addRow( "tiles", OLDER_TILE, IMAGE, hour + 2000, hour + 2000 );
+
+        new TileEvictionJob( connector, -1, 2, 0, 2, 10000, 10000 ).run();
+
+        assertEquals( new HashSet<String>( asList( RECENT_TILE, OLDER_TILE ) ), db.getKeys( "tiles" ) );
+    }
+
+    @Test
+    public void testEvictsOverflowAcrossHours() {
+        long hour = ( now / HOUR - 1 ) * HOUR;
+        db.addRow( "tiles", RECENT_TILE, IMAGE, hour + 3000, hour + 3000 );
+        db.addRow( "tiles", OLD_TILE, IMAGE, hour + 1000, hour + 1000 );
+        db.addRow( "tiles", OLDER_TILE, IMAGE, hour - 2 * HOUR, hour - 2 * HOUR );
+
+        new TileEvictionJob( connector, -1, 1, 0, 2, 10000, 10000 ).run();
+
+        assertEquals( Collections.singleton( RECENT_TILE ), db.getKeys( "tiles" ) );
+    }
+
+    @Test
+    public void testKeepsTilesWithinBudget() {
+        db.addRow( "tiles", RECENT_TILE, IMAGE, now, now );
+        db.addRow( "tiles", OLD_TILE, IMAGE, now - 10 * HOUR, now - 10 * HOUR );
+
+        new TileEvictionJob( connector, -1, 2, 0, 2, 10000, 10000 ).run();
+
+        assertEquals( new HashSet<String>( asList( RECENT_TILE, OLD_TILE ) ), db.getKeys( "tiles" ) );
+    }
+
+    @Test
+    public void testEvictionInvalidatesLocalCache() {
+        connector.setLocalCache( new LocalTileCache( 1000, 60 * HOUR ) );
+        db.addRow( "tiles", OLD_TILE, IMAGE, now - 10 * HOUR, now - 10 * HOUR );
+        // row 0 of the level is stored as row 3
+        assertNotNull( connector.resolv( "1", 1, 3 ) );
+
+        new TileEvictionJob( connector, 5 * HOUR, -1, 0, 2, 10000, 10000 ).run();
+
+        assertNull( connector.resolv( "1", 1, 3 ) );
+    }
+
+    private static TileDataLevel level( String id, int numTiles ) {
+        TileMatrix matrix = new TileMatrix( id, new SpatialMetadata( new GeometryFactory().createEnvelope( 0, 0, 1024,
+                                                                                                           1024, null ),
+                                                                     Collections.<ICRS> emptyList() ), 256, 256,
+                                            1024.0 / 256 / numTiles, numTiles, numTiles );
+        TileDataLevel level = mock( TileDataLevel.class );
+        when( level.getMetadata() ).thenReturn( matrix );
+        return level;
+    }
+
+}
@@ -0,0 +1,152 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import org.deegree.tile.TileIOException;
+import org.junit.Test;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Tests for {@link TokenRangeScanner}, using an {@link InMemoryCassandraDB}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TokenRangeScannerTest {
+
+    private static final ByteBuffer IMAGE = ByteBuffer.wrap( new byte[] { 1, 2, 3 } );
+
+    @Test
+    public void testScanHandlesEveryRowOnce()
+                            throws InterruptedException {
+        InMemoryCassandraDB db = new InMemoryCassandraDB();
+        for ( int i = 0; i < 1000; i++ ) {
+            db.addRow( "tiles", "key" + i, IMAGE, null, 0 );
+        }
+        db.addRow( "other", "key0", IMAGE, null, 0 );
+
+        final List<String> keys = Collections.synchronizedList( new ArrayList<String>() );
+        new TokenRangeScanner( db, "tiles", "key", 3, 100, null ).scan( new TokenRangeScanner.RowHandler() {
+            @Override
+            public void handle( Row row ) {
+                keys.add( row.getString( 0 ) );
+            }
+        } );
+
+        assertEquals( 1000, keys.size() );
+        assertEquals( db.getKeys( "tiles" ), new HashSet<String>( keys ) );
+    }
+
+    @Test
+    public void testScanSplitsWholeTokenRingIntoAdjacentSegments()
+                            throws InterruptedException {
+        final BigInteger[] ring = { BigInteger.ZERO, BigInteger.ONE.shiftLeft( 127 ) };
+        final List<BigInteger[]> segments = Collections.synchronizedList( new ArrayList<BigInteger[]>() );
+        InMemoryCassandraDB db = new InMemoryCassandraDB() {
+            @Override
+            public BigInteger[] getTokenRing() {
+                return ring;
+            }
+
+            @Override
+            public Iterable<Row> scanTokenRange( String columnFamily, String columns, BigInteger firstToken,
+                                                 BigInteger lastToken, int fetchSize ) {
+                segments.add( new BigInteger[] { firstToken, lastToken } );
+                return Collections.emptyList();
+            }
+        };
+
+        new TokenRangeScanner( db, "tiles", "key", 2, 100, null ).scan( new TokenRangeScanner.RowHandler() {
+            @Override
+            public void handle( Row row ) {
+                fail( "No rows expected." );
+            }
+        } );
+
+        assertEquals( 16, segments.size() );
+        Collections.sort( segments, new Comparator<BigInteger[]>() {
+            @Override
+            public int compare( BigInteger[] s1, BigInteger[] s2 ) {
+                return s1[0].compareTo( s2[0] );
+            }
+        } );
+        BigInteger next = ring[0];
+        for ( BigInteger[] segment : segments ) {
+            assertEquals( next, segment[0] );
+            assertEquals( -1, segment[0].compareTo( segment[1] ) );
+            next = segment[1].add( BigInteger.ONE );
+        }
+        assertEquals( ring[1], next.subtract( BigInteger.ONE ) );
+    }
+
+    @Test
+    public void testScanWrapsHandlerFailure()
+                            throws InterruptedException {
+        InMemoryCassandraDB db = new InMemoryCassandraDB();
+        db.addRow( "tiles", "key", IMAGE, null, 0 );
+        final RuntimeException failure = new IllegalStateException( "handler failed" );
+
+        try {
+            new TokenRangeScanner( db, "tiles", "key", 2, 100, null ).scan( new TokenRangeScanner.RowHandler() {
+                @Override
+                public void handle( Row row ) {
+                    throw failure;
+                }
+            } );
+            fail( "Scan did not fail." );
+        } catch ( TileIOException e ) {
+            assertSame( failure, e.getCause() );
+        }
+    }
+
+}
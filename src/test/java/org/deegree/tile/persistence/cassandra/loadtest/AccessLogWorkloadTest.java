@@ -0,0 +1,165 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.apache.commons.io.FileUtils;
+import org.deegree.cs.persistence.CRSManager;
+import org.deegree.geometry.Envelope;
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Tests for {@link AccessLogWorkload}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class AccessLogWorkloadTest {
+
+    private static final String KVP_GET_TILE = "10.0.0.1 - - [19/Oct/2026:10:00:00 +0200] \"GET /services/wmts?"
+                                               + "SERVICE=WMTS&request=GetTile&LAYER=map&TILEMATRIXSET=utm"
+                                               + "&TileMatrix=utm%3A5&TILEROW=7&TILECOL=3&FORMAT=image/png HTTP/1.1\""
+                                               + " 200 1234";
+
+    private static final String REST_GET_TILE = "10.0.0.1 - - [19/Oct/2026:10:00:01 +0200] \"GET /services/wmts/map/"
+                                                + "default/utm/6/12/5.png HTTP/1.1\" 200 1234";
+
+    private static final String GET_MAP = "10.0.0.1 - - [19/Oct/2026:10:00:02 +0200] \"GET /services/wms?SERVICE=WMS"
+                                          + "&REQUEST=GetMap&LAYERS=map&BBOX=100,200,612,456&WIDTH=256&HEIGHT=128"
+                                          + " HTTP/1.1\" 200 5678";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParsesKvpGetTile()
+                            throws IOException {
+        AccessLogWorkload workload = createWorkload( -1, KVP_GET_TILE );
+
+        assertEquals( "utm:5/3/7", workload.next().toString() );
+        assertNull( workload.next() );
+    }
+
+    @Test
+    public void testParsesRestfulGetTile()
+                            throws IOException {
+        AccessLogWorkload workload = createWorkload( -1, REST_GET_TILE );
+
+        assertEquals( "6/5/12", workload.next().toString() );
+    }
+
+    @Test
+    public void testParsesGetMapAsAreaRequest()
+                            throws IOException {
+        TileDataSet dataset = mock( TileDataSet.class );
+        Iterator<Tile> noTiles = Collections.<Tile> emptyList().iterator();
+        when( dataset.getTiles( any( Envelope.class ), anyDouble() ) ).thenReturn( noTiles );
+
+        createWorkload( -1, GET_MAP ).next().execute( dataset, new LoadTestStatistics( 1 ) );
+
+        ArgumentCaptor<Envelope> envelope = ArgumentCaptor.forClass( Envelope.class );
+        verify( dataset ).getTiles( envelope.capture(), eq( 2.0 ) );
+        assertEquals( 100, envelope.getValue().getMin().get0(), 0 );
+        assertEquals( 200, envelope.getValue().getMin().get1(), 0 );
+        assertEquals( 612, envelope.getValue().getMax().get0(), 0 );
+        assertEquals( 456, envelope.getValue().getMax().get1(), 0 );
+    }
+
+    @Test
+    public void testSkipsOtherLines()
+                            throws IOException {
+        AccessLogWorkload workload = createWorkload( -1, "", "GET /services/wmts?REQUEST=GetCapabilities HTTP/1.1",
+                                                     "GET /services/wmts?REQUEST=GetTile&TILEMATRIX=5&TILEROW=x"
+                                                                             + "&TILECOL=1 HTTP/1.1",
+                                                     "GET /index.html HTTP/1.1", REST_GET_TILE );
+
+        assertEquals( 1, workload.getRequests() );
+        assertEquals( "6/5/12", workload.next().toString() );
+    }
+
+    @Test
+    public void testReplaysLogUntilRequestsIssued()
+                            throws IOException {
+        AccessLogWorkload workload = createWorkload( 5, KVP_GET_TILE, REST_GET_TILE );
+
+        assertEquals( "utm:5/3/7", workload.next().toString() );
+        assertEquals( "6/5/12", workload.next().toString() );
+        assertEquals( "utm:5/3/7", workload.next().toString() );
+        assertEquals( "6/5/12", workload.next().toString() );
+        assertEquals( "utm:5/3/7", workload.next().toString() );
+        assertNull( workload.next() );
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailsWithoutTileRequests()
+                            throws IOException {
+        createWorkload( -1, "GET /index.html HTTP/1.1" );
+    }
+
+    private AccessLogWorkload createWorkload( long requests, String... lines )
+                            throws IOException {
+        File log = folder.newFile( "access.log" );
+        StringBuilder content = new StringBuilder();
+        for ( String line : lines ) {
+            content.append( line ).append( '\n' );
+        }
+        FileUtils.writeStringToFile( log, content.toString(), "UTF-8" );
+        return new AccessLogWorkload( log, CRSManager.getCRSRef( "EPSG:25832" ), requests );
+    }
+
+}
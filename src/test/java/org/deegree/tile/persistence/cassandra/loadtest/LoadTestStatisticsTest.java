@@ -0,0 +1,97 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LoadTestStatistics}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class LoadTestStatisticsTest {
+
+    @Test
+    public void testLatencyPercentiles() {
+        LoadTestStatistics statistics = new LoadTestStatistics( 100 );
+        for ( int latency = 100; latency > 0; latency-- ) {
+            statistics.record( latency, false );
+        }
+
+        assertEquals( 1, statistics.getLatencyPercentile( 0 ) );
+        assertEquals( 50, statistics.getLatencyPercentile( 50 ) );
+        assertEquals( 99, statistics.getLatencyPercentile( 99 ) );
+        assertEquals( 100, statistics.getLatencyPercentile( 99.9 ) );
+        assertEquals( 100, statistics.getLatencyPercentile( 100 ) );
+    }
+
+    @Test
+    public void testNoRequests() {
+        assertEquals( 0, new LoadTestStatistics( 10 ).getLatencyPercentile( 50 ) );
+    }
+
+    @Test
+    public void testIgnoresRequestsBeyondMaximum() {
+        LoadTestStatistics statistics = new LoadTestStatistics( 2 );
+        statistics.record( 5, false );
+        statistics.record( 7, true );
+        statistics.record( 1000, true );
+
+        assertEquals( 2, statistics.getRequests() );
+        assertEquals( 7, statistics.getLatencyPercentile( 100 ) );
+        assertEquals( 2, statistics.getFailedRequests() );
+    }
+
+    @Test
+    public void testCountsTiles() {
+        LoadTestStatistics statistics = new LoadTestStatistics( 10 );
+        statistics.addTile( 100 );
+        statistics.addTile( 50 );
+        statistics.addUnavailableTile();
+
+        assertEquals( 2, statistics.getTiles() );
+        assertEquals( 150, statistics.getBytes() );
+        assertEquals( 1, statistics.getUnavailableTiles() );
+    }
+
+}
@@ -0,0 +1,109 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+
+import org.deegree.tile.Tile;
+import org.deegree.tile.TileDataLevel;
+import org.deegree.tile.TileDataSet;
+import org.deegree.tile.TileIOException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TileRequest}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileRequestTest {
+
+    private TileDataSet dataset;
+
+    private TileDataLevel level;
+
+    private LoadTestStatistics statistics;
+
+    @Before
+    public void setUp() {
+        level = mock( TileDataLevel.class );
+        dataset = mock( TileDataSet.class );
+        when( dataset.getTileDataLevel( "5" ) ).thenReturn( level );
+        statistics = new LoadTestStatistics( 1 );
+    }
+
+    @Test
+    public void testCountsDeliveredTile() {
+        Tile tile = mock( Tile.class );
+        when( tile.getAsStream() ).thenReturn( new ByteArrayInputStream( new byte[] { 1, 2, 3 } ) );
+        when( level.getTile( 3, 7 ) ).thenReturn( tile );
+
+        TileRequest.tile( "5", 3, 7 ).execute( dataset, statistics );
+
+        assertEquals( 1, statistics.getTiles() );
+        assertEquals( 3, statistics.getBytes() );
+    }
+
+    @Test
+    public void testCountsMissingTileAsUnavailable() {
+        TileRequest.tile( "5", 3, 7 ).execute( dataset, statistics );
+        TileRequest.tile( "unknown", 3, 7 ).execute( dataset, statistics );
+
+        assertEquals( 0, statistics.getTiles() );
+        assertEquals( 2, statistics.getUnavailableTiles() );
+    }
+
+    @Test
+    public void testCountsFailedTileAsUnavailable() {
+        Tile tile = mock( Tile.class );
+        when( tile.getAsStream() ).thenThrow( new TileIOException( "cassandra failed" ) );
+        when( level.getTile( 3, 7 ) ).thenReturn( tile );
+
+        TileRequest.tile( "5", 3, 7 ).execute( dataset, statistics );
+
+        assertEquals( 1, statistics.getUnavailableTiles() );
+    }
+
+}
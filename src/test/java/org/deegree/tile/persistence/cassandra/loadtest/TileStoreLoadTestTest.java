@@ -0,0 +1,118 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Runs small {@link TileStoreLoadTest}s against the {@link SimulatedCassandraDB}.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class TileStoreLoadTestTest {
+
+    @Test(timeout = 30000)
+    public void testClosedRun()
+                            throws Exception {
+        String report = run( "mode", "closed", "cacheBytes", "1000000" );
+
+        assertTrue( report, report.contains( "Requests:        200 in " ) );
+        assertTrue( report, report.contains( ", 0 failed" ) );
+        assertTrue( report, report.contains( "Local cache:" ) );
+        assertFalse( report, report.contains( "Overzoom cache:" ) );
+    }
+
+    @Test(timeout = 30000)
+    public void testOpenRun()
+                            throws Exception {
+        String report = run( "mode", "open", "rate", "2000" );
+
+        assertTrue( report, report.contains( "Requests:        200 in " ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownOption() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put( "unknown", "1" );
+
+        new TileStoreLoadTest( options );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownMode()
+                            throws Exception {
+        run( "mode", "half-open" );
+    }
+
+    private static String run( String... options )
+                            throws IOException, InterruptedException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put( "requests", "200" );
+        values.put( "threads", "4" );
+        values.put( "levels", "6" );
+        values.put( "level", "5" );
+        values.put( "keys", "50" );
+        values.put( "latency", "0.1" );
+        for ( int i = 0; i < options.length; i += 2 ) {
+            values.put( options[i], options[i + 1] );
+        }
+        TileStoreLoadTest loadTest = new TileStoreLoadTest( values );
+        loadTest.run();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream print = new PrintStream( out, true, "UTF-8" );
+        loadTest.report( print );
+        print.close();
+        String report = out.toString( "UTF-8" );
+        assertTrue( report, report.contains( "Tiles:           200 delivered" ) );
+        assertTrue( report, report.contains( "Backend calls:" ) );
+        return report;
+    }
+
+}
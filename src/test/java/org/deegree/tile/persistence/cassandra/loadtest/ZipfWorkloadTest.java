@@ -0,0 +1,136 @@
+//$HeadURL$
+/*----------------------------------------------------------------------------
+ This file is part of deegree, http://deegree.org/
+ Copyright (C) 2001-2012 by:
+ - Department of Geography, University of Bonn -
+ and
+ - lat/lon GmbH -
+
+ This library is free software; you can redistribute it and/or modify it under
+ the terms of the GNU Lesser General Public License as published by the Free
+ Software Foundation; either version 2.1 of the License, or (at your option)
+ any later version.
+ This library is distributed in the hope that it will be useful, but WITHOUT
+ ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ details.
+ You should have received a copy of the GNU Lesser General Public License
+ along with this library; if not, write to the Free Software Foundation, Inc.,
+ 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+ Contact information:
+
+ lat/lon GmbH
+ Aennchenstr. 19, 53177 Bonn
+ Germany
+ http://lat-lon.de/
+
+ Department of Geography, University of Bonn
+ Prof. Dr. Klaus Greve
+ Postfach 1147, 53001 Bonn
+ Germany
+ http://www.geographie.uni-bonn.de/deegree/
+
+ e-mail: info@deegree.org
+ ----------------------------------------------------------------------------*/
+
+
+package org.deegree.tile.persistence.cassandra.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.deegree.cs.coordinatesystems.ICRS;
+import org.deegree.geometry.Envelope;
+import org.deegree.geometry.GeometryFactory;
+import org.deegree.geometry.metadata.SpatialMetadata;
+import org.deegree.tile.TileMatrix;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ZipfWorkload}, requesting tiles of a matrix with 8x8 tiles.
+ * 
+ * @author <a href="mailto:vieweg@lat-lon.de">Martin Vieweg</a>
+ * @author last edited by: $Author$
+ * 
+ * @version $Revision$, $Date$
+ */
+public class ZipfWorkloadTest {
+
+    private static final Envelope EXTENT = new GeometryFactory().createEnvelope( 0, 0, 2048, 2048, null );
+
+    private static final SpatialMetadata METADATA = new SpatialMetadata( EXTENT, Collections.<ICRS> emptyList() );
+
+    private static final TileMatrix MATRIX = new TileMatrix( "3", METADATA, 256, 256, 1.0, 8, 8 );
+
+    @Test
+    public void testIssuesConfiguredNumberOfRequests() {
+        ZipfWorkload workload = new ZipfWorkload( MATRIX, 10, 1, 100, 1 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            assertTrue( workload.next().toString().startsWith( "3/" ) );
+        }
+        assertNull( workload.next() );
+    }
+
+    @Test
+    public void testRequestsDistinctTilesOfMatrix() {
+        Map<String, Integer> counts = count( new ZipfWorkload( MATRIX, 20, 0, 10000, 1 ) );
+
+        assertEquals( 20, counts.size() );
+        for ( String tile : counts.keySet() ) {
+            String[] parts = tile.split( "/" );
+            assertTrue( tile, Long.parseLong( parts[1] ) < 8 && Long.parseLong( parts[2] ) < 8 );
+        }
+    }
+
+    @Test
+    public void testLimitsKeysToTilesOfMatrix() {
+        assertEquals( 64, count( new ZipfWorkload( MATRIX, 1000, 0, 10000, 1 ) ).size() );
+    }
+
+    @Test
+    public void testUniformWithoutSkew() {
+        for ( int count : count( new ZipfWorkload( MATRIX, 10, 0, 10000, 1 ) ).values() ) {
+            assertTrue( String.valueOf( count ), count > 800 && count < 1200 );
+        }
+    }
+
+    @Test
+    public void testSkewFollowsZipfDistribution() {
+        List<Integer> counts = new ArrayList<Integer>( count( new ZipfWorkload( MATRIX, 64, 1, 10000, 1 ) ).values() );
+        Collections.sort( counts, Collections.reverseOrder() );
+
+        // p(k) = 1 / (k * H(64)) with H(64) = 4.74
+        assertEquals( 2110, counts.get( 0 ), 200 );
+        assertEquals( 1055, counts.get( 1 ), 150 );
+    }
+
+    @Test
+    public void testSeedDeterminesRequests() {
+        ZipfWorkload workload1 = new ZipfWorkload( MATRIX, 10, 1, 100, 7 );
+        ZipfWorkload workload2 = new ZipfWorkload( MATRIX, 10, 1, 100, 7 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            assertEquals( workload1.next().toString(), workload2.next().toString() );
+        }
+    }
+
+    private static Map<String, Integer> count( ZipfWorkload workload ) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        TileRequest request;
+        while ( ( request = workload.next() ) != null ) {
+            Integer count = counts.get( request.toString() );
+            counts.put( request.toString(), count == null ? 1 : count + 1 );
+        }
+        return counts;
+    }
+
+}